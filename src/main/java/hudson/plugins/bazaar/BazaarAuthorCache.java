@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import static hudson.Util.fixEmpty;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps bzr committers to Jenkins {@link User}s.
+ *
+ * <p>
+ * Looking a user up, and creating it when it doesn't exist yet, is far too
+ * costly to do on every render of a change log, so resolved users are kept in
+ * a bounded LRU map keyed by committer name and email. Entries are dropped
+ * whenever the user they point to is saved, so that configuration changes
+ * are picked up.
+ * </p>
+ */
+public final class BazaarAuthorCache {
+
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final Map<String, User> users = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private BazaarAuthorCache() {
+    }
+
+    /**
+     * Gets the user for a committer, creating it if needed.
+     */
+    static User get(String author, String authorEmail) {
+        String key = author + '\u0000' + authorEmail;
+        synchronized (users) {
+            User user = users.get(key);
+            if (user != null) {
+                return user;
+            }
+        }
+
+        User user = resolve(author, authorEmail);
+        if (user != null) {
+            synchronized (users) {
+                users.put(key, user);
+            }
+        }
+        return user;
+    }
+
+    private static User resolve(String author, String authorEmail) {
+        User user = User.get(author, false);
+
+        if (user == null) {
+            user = User.get(author, true);
+
+            // set email address for user, unless a concurrent lookup already did
+            if (fixEmpty(authorEmail) != null) {
+                Mailer.UserProperty property = user.getProperty(Mailer.UserProperty.class);
+                if (property == null || property.getAddress() == null) {
+                    try {
+                        user.addProperty(new Mailer.UserProperty(authorEmail));
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Failed to set email address of " + author, e);
+                    }
+                }
+            }
+        }
+
+        return user;
+    }
+
+    static void invalidate(User user) {
+        synchronized (users) {
+            for (Iterator<User> it = users.values().iterator(); it.hasNext();) {
+                if (it.next() == user) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class InvalidationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof User) {
+                invalidate((User) o);
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarAuthorCache.class.getName());
+}
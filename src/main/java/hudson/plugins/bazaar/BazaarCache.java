@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Treeless mirrors of Bazaar branches kept on a node, under
+ * <tt>bazaar-cache</tt> in its root directory, so that workspaces on that node
+ * can fetch revisions locally rather than from the remote source.
+ */
+public final class BazaarCache {
+
+    static final String CACHE_DIR = "bazaar-cache";
+
+    /**
+     * Runs background updates. Its queue is bounded: when too many updates are
+     * waiting, new ones are dropped, the next refresh will queue them again.
+     */
+    private static final ExecutorService executor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(100), new DaemonThreadFactory());
+
+    /**
+     * Status of the caches known to this master, by {@link #key(Node, String)}.
+     */
+    private static final Map<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+
+    /**
+     * Caches being repacked by {@link BazaarMaintenance}, by node name and path.
+     */
+    private static final Set<String> packing = new HashSet<String>();
+
+    private BazaarCache() {
+    }
+
+    /**
+     * Gets the mirror of a source on a node, which may not exist yet.
+     */
+    static FilePath getCacheDir(Node node, String source) {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return null;
+        }
+        return root.child(CACHE_DIR).child(Util.getDigestOf(source));
+    }
+
+    /**
+     * Gets the mirror of a source on a node, or null if it doesn't exist.
+     */
+    static FilePath getExistingCacheDir(Node node, String source) throws InterruptedException {
+        FilePath cache = node == null ? null : getCacheDir(node, source);
+        try {
+            if (cache != null && cache.child(".bzr").exists()) {
+                return cache;
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to look for the cache of " + source, e);
+        }
+        return null;
+    }
+
+    /**
+     * Creates or updates the mirror of a source.
+     */
+    static boolean update(Node node, Launcher launcher, FilePath cache, String source, TaskListener listener) throws InterruptedException {
+        return update(null, node, launcher, cache, source, listener);
+    }
+
+    private static boolean update(Status status, Node node, Launcher launcher, FilePath cache, String source, TaskListener listener) throws InterruptedException {
+        String bzrExe = BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        BazaarLocks.Lease lease = null;
+        try {
+            lease = BazaarLocks.acquire(node, cache, listener);
+            if (lease == null) {
+                listener.error("Gave up waiting for the cache of " + source);
+                if (status != null) {
+                    status.state = State.FAILED;
+                }
+                return false;
+            }
+            if (cache.child(".bzr").exists()) {
+                args.add(bzrExe, "pull", "--overwrite", "-d", cache.getRemote(), source);
+            } else {
+                cache.getParent().mkdirs();
+                cache.deleteRecursive();
+                BazaarCapabilities capabilities = BazaarCapabilities.get(node, launcher);
+                args.add(bzrExe, "branch");
+                // a bzr that could not be probed may be too old for it
+                if (capabilities != null && capabilities.isNoTree()) {
+                    args.add("--no-tree");
+                }
+                args.add(source, cache.getRemote());
+            }
+            if (status != null) {
+                status.state = State.UPDATING;
+            }
+            if (launcher.launch().cmds(args).stdout(listener.getLogger()).join() != 0) {
+                listener.error("Failed to update the cache of " + source);
+                if (status != null) {
+                    status.state = State.FAILED;
+                }
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to update the cache of " + source));
+            if (status != null) {
+                status.state = State.FAILED;
+            }
+            return false;
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+        if (status != null) {
+            status.state = State.UP_TO_DATE;
+            status.lastUpdated = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * Updates the mirror of a source on a node in the background, unless an
+     * update of it is already running.
+     */
+    static void updateAsync(final Node node, final String source) {
+        final Status status = getStatus(node, source, true);
+        FilePath cacheDir = getCacheDir(node, source);
+        synchronized (statuses) {
+            if (status.state == State.QUEUED || status.state == State.UPDATING
+                    || cacheDir != null && packing.contains(node.getNodeName() + '\n' + cacheDir.getRemote())) {
+                return;
+            }
+            status.state = State.QUEUED;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Computer computer = node.toComputer();
+                        FilePath cache = getCacheDir(node, source);
+                        if (computer == null || computer.isOffline() || cache == null) {
+                            status.state = State.FAILED;
+                            return;
+                        }
+                        TaskListener listener = new LogTaskListener(logger, Level.FINE);
+                        update(status, node, node.createLauncher(listener), cache, source, listener);
+                    } catch (InterruptedException e) {
+                        status.state = State.FAILED;
+                        logger.log(Level.FINE, "Interrupted while updating the cache of " + source, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            status.state = State.FAILED;
+            logger.log(Level.FINE, "Too many cache updates waiting, dropped " + source + " on " + node.getNodeName());
+        }
+    }
+
+    /**
+     * Gets the status of the cache of a source on a node.
+     *
+     * @param create
+     *      true to start tracking the cache if it isn't yet.
+     */
+    static Status getStatus(Node node, String source, boolean create) {
+        String key = key(node, source);
+        synchronized (statuses) {
+            Status status = statuses.get(key);
+            if (status == null && create) {
+                status = new Status(node.getNodeName(), source);
+                statuses.put(key, status);
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Gets the status of all the caches of a node.
+     */
+    public static List<Status> getStatuses(Node node) {
+        List<Status> result = new ArrayList<Status>();
+        for (Status status : statuses.values()) {
+            if (status.nodeName.equals(node.getNodeName())) {
+                result.add(status);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Marks a cache as being repacked, unless it is being updated.
+     * Updates of the cache are skipped until {@link #endMaintenance(Node, FilePath)}.
+     *
+     * @return
+     *      false if the cache is in use.
+     */
+    static boolean beginMaintenance(Node node, FilePath cache) {
+        synchronized (statuses) {
+            for (Status status : statuses.values()) {
+                if (status.nodeName.equals(node.getNodeName()) && cache.equals(getCacheDir(node, status.source))
+                        && (status.state == State.QUEUED || status.state == State.UPDATING)) {
+                    return false;
+                }
+            }
+            return packing.add(node.getNodeName() + '\n' + cache.getRemote());
+        }
+    }
+
+    static void endMaintenance(Node node, FilePath cache) {
+        synchronized (statuses) {
+            packing.remove(node.getNodeName() + '\n' + cache.getRemote());
+        }
+    }
+
+    public enum State {
+        NEW, QUEUED, UPDATING, UP_TO_DATE, FAILED
+    }
+
+    /**
+     * What this master knows of a cache.
+     */
+    public static final class Status {
+        private final String nodeName;
+        private final String source;
+        private volatile State state = State.NEW;
+        /**
+         * When the last successful update finished, or 0.
+         */
+        private volatile long lastUpdated;
+
+        Status(String nodeName, String source) {
+            this.nodeName = nodeName;
+            this.source = source;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Gets the source with the password of its URL, if any, masked, for display.
+         */
+        public String getMaskedSource() {
+            return source.replaceFirst("^([\\w+.-]+://[^/:@]*):[^/@]*@", "$1:****@");
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getLastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * Gets how long ago the cache was updated, for display.
+         */
+        public String getAge() {
+            if (lastUpdated == 0) {
+                return "never";
+            }
+            return Util.getTimeSpanString(System.currentTimeMillis() - lastUpdated);
+        }
+    }
+
+    private static String key(Node node, String source) {
+        return node.getNodeName() + '\n' + source;
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarCache.class.getName());
+}
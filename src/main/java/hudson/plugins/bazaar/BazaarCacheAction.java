@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TransientComputerActionFactory;
+import hudson.security.Permission;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows the state of the {@link BazaarCache}s of a node on its page, and what
+ * {@link BazaarMaintenance} last did to its branches, to those who may
+ * configure the node: sources may hold credentials.
+ */
+public class BazaarCacheAction implements Action {
+
+    private final Computer computer;
+
+    public BazaarCacheAction(Computer computer) {
+        this.computer = computer;
+    }
+
+    public Computer getComputer() {
+        return computer;
+    }
+
+    public List<BazaarCache.Status> getStatuses() {
+        Node node = computer.getNode();
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        return BazaarCache.getStatuses(node);
+    }
+
+    public List<BazaarMaintenance.Result> getMaintenanceResults() {
+        Node node = computer.getNode();
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        return BazaarMaintenance.getResults(node);
+    }
+
+    /**
+     * Gets what the bzr of the node can do, once probed.
+     */
+    public BazaarCapabilities getCapabilities() {
+        return BazaarCapabilities.getProbed(computer.getNode());
+    }
+
+    /**
+     * Gets the permission needed to see this page, for the layout to check.
+     */
+    public Permission getRequiredPermission() {
+        return Computer.CONFIGURE;
+    }
+
+    public String getIconFileName() {
+        if (!computer.hasPermission(Computer.CONFIGURE)) {
+            return null;
+        }
+        return getStatuses().isEmpty() && getMaintenanceResults().isEmpty() ? null : "folder.gif";
+    }
+
+    public String getDisplayName() {
+        return "Bazaar Caches";
+    }
+
+    public String getUrlName() {
+        return computer.hasPermission(Computer.CONFIGURE) ? "bazaarCaches" : null;
+    }
+
+    @Extension
+    public static class Factory extends TransientComputerActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            return Collections.singleton(new BazaarCacheAction(target));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Fills the {@link BazaarCache} of nodes matching the cache label as soon as
+ * they come online, with the sources of the jobs tied to them.
+ */
+@Extension
+public class BazaarCacheWarmer extends ComputerListener {
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        Node node = c.getNode();
+        if (node == null) {
+            return;
+        }
+        Set<String> sources = getSources(node);
+        if (!sources.isEmpty()) {
+            listener.getLogger().println("Warming up the Bazaar cache of " + sources.size() + " sources");
+        }
+        for (String source : sources) {
+            BazaarCache.updateAsync(node, source);
+        }
+    }
+
+    /**
+     * Gets the sources to cache on a node, none unless it matches the cache label.
+     */
+    static Set<String> getSources(Node node) {
+        Set<String> sources = new LinkedHashSet<String>();
+        Hudson hudson = Hudson.getInstance();
+        if (!isCacheNode(node)) {
+            return sources;
+        }
+
+        for (AbstractProject<?, ?> project : hudson.getAllItems(AbstractProject.class)) {
+            if (!(project.getScm() instanceof BazaarSCM) || project.isDisabled()) {
+                continue;
+            }
+            Label assigned = project.getAssignedLabel();
+            if (assigned != null && assigned.contains(node)) {
+                sources.add(((BazaarSCM) project.getScm()).getSource());
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Tells whether a node matches the cache label, and so keeps caches.
+     */
+    static boolean isCacheNode(Node node) {
+        String labelExpression = BazaarSCM.DescriptorImpl.DESCRIPTOR.getCacheLabel();
+        Hudson hudson = Hudson.getInstance();
+        if (labelExpression == null || hudson == null) {
+            return false;
+        }
+        Label label = hudson.getLabel(labelExpression);
+        return label != null && label.contains(node);
+    }
+
+    /**
+     * Refreshes the caches of idle nodes once they are older than the
+     * configured refresh interval.
+     */
+    @Extension
+    public static class Refresher extends AsyncPeriodicWork {
+        public Refresher() {
+            super("Bazaar cache refresh");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN * 5;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            long maxAge = BazaarSCM.DescriptorImpl.DESCRIPTOR.getCacheRefreshInterval() * MIN;
+            long now = System.currentTimeMillis();
+            for (Computer c : Hudson.getInstance().getComputers()) {
+                Node node = c.getNode();
+                if (node == null || c.isOffline() || !c.isIdle()) {
+                    continue;
+                }
+                for (String source : getSources(node)) {
+                    BazaarCache.Status status = BazaarCache.getStatus(node, source, false);
+                    if (status == null || now - status.getLastUpdated() >= maxAge) {
+                        BazaarCache.updateAsync(node, source);
+                    }
+                }
+            }
+        }
+    }
+}
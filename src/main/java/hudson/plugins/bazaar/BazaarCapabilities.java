@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the bzr of a node can do, probed once when the node connects rather
+ * than each time a command could use it.
+ *
+ * <p>
+ * The probes are forgotten when the node goes offline or the global
+ * configuration, and so maybe the bzr executable, changes. A node is probed
+ * once even when many builds ask at the same time. Callers take a node that
+ * could not be probed for one with an old bzr.
+ * </p>
+ */
+public final class BazaarCapabilities {
+
+    private static final Pattern VERSION = Pattern.compile("Bazaar \\(bzr\\) (\\S+)");
+
+    private static final Pattern FORMAT = Pattern.compile("^  ([\\w.-]+):", Pattern.MULTILINE);
+
+    /**
+     * Probes by node name, the master being "".
+     */
+    private static final Map<String, BazaarCapabilities> probes = new ConcurrentHashMap<String, BazaarCapabilities>();
+
+    /**
+     * Probes running, by node name.
+     */
+    private static final ConcurrentMap<String, FutureTask<BazaarCapabilities>> inflight
+            = new ConcurrentHashMap<String, FutureTask<BazaarCapabilities>>();
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private final String version;
+    private final Set<String> plugins;
+    private final Set<String> formats;
+    private final boolean noTree;
+    private final boolean stacked;
+    private final boolean levels;
+
+    private BazaarCapabilities(String version, Set<String> plugins, Set<String> formats,
+                               boolean noTree, boolean stacked, boolean levels) {
+        this.version = version;
+        this.plugins = Collections.unmodifiableSet(plugins);
+        this.formats = Collections.unmodifiableSet(formats);
+        this.noTree = noTree;
+        this.stacked = stacked;
+        this.levels = levels;
+    }
+
+    /**
+     * Gets the bzr version, like <tt>2.5.1</tt>, or the revision of a snapshot build.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the names of the installed plugins.
+     */
+    public Set<String> getPlugins() {
+        return plugins;
+    }
+
+    /**
+     * Gets the names of the branch formats bzr offers, like <tt>2a</tt>.
+     */
+    public Set<String> getFormats() {
+        return formats;
+    }
+
+    /**
+     * True if <tt>bzr branch --no-tree</tt> is supported.
+     */
+    public boolean isNoTree() {
+        return noTree;
+    }
+
+    /**
+     * True if <tt>bzr branch --stacked</tt> is supported.
+     */
+    public boolean isStacked() {
+        return stacked;
+    }
+
+    /**
+     * True if <tt>bzr log -n</tt> is supported.
+     */
+    public boolean isLevels() {
+        return levels;
+    }
+
+    /**
+     * Gets the capabilities of the bzr of a node, probing them if they aren't
+     * known yet.
+     *
+     * @return
+     *      null if bzr could not be run.
+     */
+    static BazaarCapabilities get(Node node, final Launcher launcher) throws InterruptedException {
+        if (node == null) {
+            return null;
+        }
+        final String name = node.getNodeName();
+        BazaarCapabilities capabilities = probes.get(name);
+        if (capabilities != null) {
+            return capabilities;
+        }
+
+        FutureTask<BazaarCapabilities> task = new FutureTask<BazaarCapabilities>(new Callable<BazaarCapabilities>() {
+            public BazaarCapabilities call() throws InterruptedException {
+                BazaarCapabilities capabilities = probe(launcher);
+                if (capabilities != null) {
+                    probes.put(name, capabilities);
+                }
+                return capabilities;
+            }
+        });
+        FutureTask<BazaarCapabilities> running = inflight.putIfAbsent(name, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inflight.remove(name);
+            }
+            running = task;
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            logger.log(Level.WARNING, "Failed to probe bzr on " + name, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the capabilities of the bzr of a node, if they are known.
+     */
+    public static BazaarCapabilities getProbed(Node node) {
+        return node == null ? null : probes.get(node.getNodeName());
+    }
+
+    /**
+     * Forgets all the probes, and probes the nodes online again.
+     */
+    static void invalidate() {
+        probes.clear();
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return;
+        }
+        for (Computer c : hudson.getComputers()) {
+            if (c.isOnline()) {
+                probeAsync(c);
+            }
+        }
+    }
+
+    private static void probeAsync(final Computer c) {
+        executor.execute(new Runnable() {
+            public void run() {
+                Node node = c.getNode();
+                if (node == null || c.isOffline()) {
+                    return;
+                }
+                try {
+                    get(node, node.createLauncher(new LogTaskListener(logger, Level.FINE)));
+                } catch (InterruptedException e) {
+                    logger.log(Level.FINE, "Interrupted while probing bzr on " + c.getName(), e);
+                }
+            }
+        });
+    }
+
+    private static BazaarCapabilities probe(Launcher launcher) throws InterruptedException {
+        String versionOutput = run(launcher, "--version");
+        if (versionOutput == null) {
+            return null;
+        }
+        String version = null;
+        Matcher m = BazaarSCM.DescriptorImpl.UUID_VERSION_STRING.matcher(versionOutput);
+        if (m.find()) {
+            version = m.group(1);
+        } else {
+            m = VERSION.matcher(versionOutput);
+            if (m.find()) {
+                version = m.group(1);
+            }
+        }
+
+        Set<String> plugins = new TreeSet<String>();
+        String pluginsOutput = run(launcher, "plugins");
+        if (pluginsOutput != null) {
+            for (String line : pluginsOutput.split("\n")) {
+                if (line.length() > 0 && !Character.isWhitespace(line.charAt(0))) {
+                    plugins.add(line.split("\\s+")[0]);
+                }
+            }
+        }
+
+        Set<String> formats = new TreeSet<String>();
+        String formatsOutput = run(launcher, "help", "current-formats");
+        if (formatsOutput != null) {
+            m = FORMAT.matcher(formatsOutput);
+            while (m.find()) {
+                formats.add(m.group(1));
+            }
+        }
+
+        String branchHelp = run(launcher, "help", "branch");
+        String logHelp = run(launcher, "help", "log");
+        return new BazaarCapabilities(version, plugins, formats,
+                branchHelp != null && branchHelp.contains("--no-tree"),
+                branchHelp != null && branchHelp.contains("--stacked"),
+                logHelp != null && logHelp.contains("--levels"));
+    }
+
+    private static String run(Launcher launcher, String... args) throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArgumentListBuilder cmds = new ArgumentListBuilder();
+        cmds.add(BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe());
+        cmds.add(args);
+        try {
+            if (launcher.launch().cmds(cmds).stdout(out).join() != 0) {
+                return null;
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to run bzr " + args[0], e);
+            return null;
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "bzr " + version + (plugins.isEmpty() ? "" : " with " + plugins);
+    }
+
+    /**
+     * Probes each node as it connects.
+     */
+    @Extension
+    public static class Prober extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (c.getNode() != null) {
+                probes.remove(c.getNode().getNodeName());
+            }
+            probeAsync(c);
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            if (c.getNode() != null) {
+                probes.remove(c.getNode().getNodeName());
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarCapabilities.class.getName());
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2009 Trond Norbye
+ * Copyright (C) 2010-2011 Alexandre Garnier <zigarn@dev.java.net>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.scm.EditType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Reads the output of bzr log one change set at a time.
+ *
+ * <p>
+ * The log covers the range from the revision of the previous build up to the
+ * new one, so its last entry is the revision we already had. That entry is
+ * never returned.
+ * </p>
+ *
+ * <p>
+ * The change log of a multi-location job holds the log of each additional
+ * location after the one of the main source, each introduced by a
+ * {@link #LOCATION} line. The last entry of every section is dropped.
+ * </p>
+ *
+ * <p>
+ * Revisions merged by a change set are logged indented below it. They are
+ * only counted in {@link BazaarChangeSet#getMergedCount()}, unless the reader
+ * is asked for them: it then returns every entry, at its depth, including the
+ * last ones.
+ * </p>
+ *
+ * @author Trond Norbye
+ */
+final class BazaarChangeLogReader {
+
+    static final String SEPARATOR = "------------------------------------------------------------";
+
+    /**
+     * Starts the log of an additional location, followed by its source.
+     */
+    static final String LOCATION = "#bzr-location: ";
+
+    private final BufferedReader in;
+    private final boolean merged;
+    private final StringBuilder message = new StringBuilder();
+    private final DateFormat dateFormat = new SimpleDateFormat("EEE yyyy-MM-dd HH:mm:ss Z", Locale.ENGLISH);
+
+    private BazaarChangeSet entry = null;
+    private int state = 0;
+    private int ident = 0;
+
+    /**
+     * Source of the section being read, null for the main one.
+     */
+    private String location = null;
+
+    /**
+     * True if the entry last read ended its section.
+     */
+    private boolean lastOfSection;
+
+    /**
+     * True while skipping the revisions merged by the current entry.
+     */
+    private boolean skipping;
+
+    BazaarChangeLogReader(Reader in) {
+        this(in, false);
+    }
+
+    /**
+     * @param merged
+     *      true to return the merged revisions too.
+     */
+    BazaarChangeLogReader(Reader in, boolean merged) {
+        this.in = new BufferedReader(in);
+        this.merged = merged;
+    }
+
+    /**
+     * Gets the next change set of the log.
+     *
+     * @return
+     *      null once all the new change sets have been read.
+     */
+    BazaarChangeSet next() throws IOException {
+        BazaarChangeSet result;
+        while ((result = readEntry()) != null) {
+            if (merged || !lastOfSection) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    private BazaarChangeSet readEntry() throws IOException {
+        String s;
+        while ((s = in.readLine()) != null) {
+            if (s.startsWith(LOCATION)) {
+                BazaarChangeSet done = finishEntry();
+                entry = null;
+                state = 0;
+                message.setLength(0);
+                skipping = false;
+                location = s.substring(LOCATION.length()).trim();
+                if (done != null) {
+                    lastOfSection = true;
+                    return done;
+                }
+                continue;
+            }
+
+            int nident = 0;
+            int len = s.length();
+            while (nident < len && s.charAt(nident) == ' ') {
+                ++nident;
+            }
+
+            s = s.trim();
+            len = s.length();
+            if (!merged && nident > 0 && SEPARATOR.equals(s)) {
+                if (entry != null) {
+                    if (!skipping) {
+                        // the message of a merge without files ends here
+                        if (state == 4 && message.length() != 0) {
+                            entry.setMsg(message.toString());
+                        }
+                        message.setLength(0);
+                        skipping = true;
+                    }
+                    entry.setMergedCount(entry.getMergedCount() + 1);
+                }
+                continue;
+            }
+            if (skipping && !SEPARATOR.equals(s)) {
+                continue;
+            }
+            if (SEPARATOR.equals(s)) {
+                BazaarChangeSet done = finishEntry();
+                entry = new BazaarChangeSet();
+                entry.setLocation(location);
+                entry.setDepth(nident / 4);
+                state = 0;
+                message.setLength(0);
+                skipping = false;
+                ident = nident;
+                if (done != null) {
+                    lastOfSection = false;
+                    return done;
+                }
+                continue;
+            }
+
+            switch (state) {
+                case 0:
+                    if (ident == nident && s.startsWith("revno:")) {
+                        String rev = s.substring("revno:".length()).trim();
+                        if (rev.contains("[merge]")) {
+                            entry.setMerge(true);
+                            rev = rev.substring(0, rev.length() - "[merge]".length()).trim();
+                        }
+                        entry.setRevno(rev);
+                        ++state;
+                    }
+                    break;
+                case 1:
+                    if (ident == nident && s.startsWith("tags:")) {
+                        String tags = s.substring("tags:".length()).trim();
+                        entry.setTags(Arrays.asList(tags.split(", ")));
+                    }
+                    if (ident == nident && s.startsWith("revision-id:")) {
+                        String rev = s.substring("revision-id:".length()).trim();
+                        entry.setRevid(rev);
+                        ++state;
+                    }
+                    break;
+                case 2:
+                    if (ident == nident && s.startsWith("committer:")) {
+                        int emailStartIndex = s.indexOf('<');
+                        String author = s.substring("committer:".length(), emailStartIndex < 0 ? len : emailStartIndex).trim();
+                        entry.setAuthor(author);
+                        if (emailStartIndex >= 0) {
+                            int emailEndIndex = s.indexOf('>');
+                            if (emailEndIndex >= emailStartIndex) {
+                                String authorEmail = s.substring(1 + emailStartIndex, emailEndIndex).trim();
+                                entry.setAuthorEmail(authorEmail);
+                            }
+                        }
+                        ++state;
+                    }
+                    break;
+                case 3:
+                    if (ident == nident && s.startsWith("timestamp:")) {
+                        String date = s.substring("timestamp:".length()).trim();
+                        entry.setDate(date);
+                        setTimestamp(entry, date);
+                        ++state;
+                    }
+                    break;
+                case 4:
+                    if (!(ident == nident && s.startsWith("message:"))) {
+                        if (ident == nident && (s.startsWith("modified:") || s.startsWith("added:") || s.startsWith("removed:") || s.startsWith("renamed:"))) {
+                            state = nextFileState(s, state);
+                            entry.setMsg(message.toString());
+                            message.setLength(0);
+                        } else {
+                            if (message.length() != 0) {
+                                message.append("\n");
+                            }
+                            message.append(s);
+                        }
+                    }
+                    break;
+                case 5: // modified
+                case 8: // renamed
+                    int next = nextFileState(s, -1);
+                    if (next < 0) {
+                        entry.addAffectedFile(createAffectedFile(EditType.EDIT, s));
+                    } else {
+                        state = next;
+                    }
+                    break;
+                case 6: // added
+                    next = nextFileState(s, -1);
+                    if (next < 0) {
+                        entry.addAffectedFile(createAffectedFile(EditType.ADD, s));
+                    } else {
+                        state = next;
+                    }
+                    break;
+                case 7: // removed
+                    next = nextFileState(s, -1);
+                    if (next < 0) {
+                        entry.addAffectedFile(createAffectedFile(EditType.DELETE, s));
+                    } else {
+                        state = next;
+                    }
+                    break;
+
+                default: {
+                    Logger logger = Logger.getLogger(BazaarChangeLogReader.class.getName());
+                    logger.warning("Unknown parser state: " + state);
+                }
+            }
+        }
+
+        BazaarChangeSet done = finishEntry();
+        entry = null;
+        lastOfSection = true;
+        return done;
+    }
+
+    /**
+     * Parses a timestamp like <tt>Thu 2011-03-17 15:32:33 +0100</tt>.
+     */
+    private void setTimestamp(BazaarChangeSet entry, String date) {
+        try {
+            entry.setTimestamp(dateFormat.parse(date).getTime());
+        } catch (ParseException e) {
+            Logger logger = Logger.getLogger(BazaarChangeLogReader.class.getName());
+            logger.fine("Unparseable timestamp: " + date);
+            return;
+        }
+        int index = date.lastIndexOf(' ');
+        if (index >= 0) {
+            entry.setTimezone(date.substring(index + 1));
+        }
+    }
+
+    private BazaarChangeSet finishEntry() {
+        if (entry != null && state > 2) {
+            if (message.length() != 0) {
+                entry.setMsg(message.toString());
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the parser state matching a "modified:", "added:", ... header line.
+     */
+    private static int nextFileState(String s, int defaultState) {
+        if (s.startsWith("modified")) {
+            return 5;
+        } else if (s.startsWith("added:")) {
+            return 6;
+        } else if (s.startsWith("removed:")) {
+            return 7;
+        } else if (s.startsWith("renamed:")) {
+            return 8;
+        }
+        return defaultState;
+    }
+
+    private static BazaarAffectedFile createAffectedFile(EditType editType, String changelogLine) {
+        String oldPath = null;
+        String path = changelogLine.trim();
+        String fileId = "";
+        int index = changelogLine.lastIndexOf(' ');
+        if (index >= 0) {
+            path = changelogLine.substring(0, index).trim();
+            fileId = changelogLine.substring(index, changelogLine.length()).trim();
+        }
+        if (path.contains("=>")) {
+            String[] paths = path.split("=>");
+            oldPath = paths[0].trim();
+            path = paths[1].trim();
+        }
+        return new BazaarAffectedFile(editType, oldPath, path, fileId);
+    }
+}
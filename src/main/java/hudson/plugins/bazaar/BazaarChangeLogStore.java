@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Change logs shared by the builds of all jobs, under
+ * <tt>bazaar-changelogs</tt> in the Jenkins home directory.
+ *
+ * <p>
+ * Logs are stored compressed, named after the digest of their content, and
+ * indexed by source and revision range. The change log of a build then only
+ * holds a reference to its log. A log is computed once even when many builds
+ * ask for the same range at the same time.
+ * </p>
+ *
+ * <p>
+ * Logs are streamed to disk as they are read, never held in memory, and
+ * {@link Pruner} deletes those no build refers to any more.
+ * </p>
+ */
+public final class BazaarChangeLogStore {
+
+    /**
+     * First line of a build change log that points to a stored log.
+     */
+    static final String REFERENCE = "bzr-changelog-store: ";
+
+    private static final String STORE_DIR = "bazaar-changelogs";
+
+    /**
+     * Encoding of change logs, wherever they were written.
+     */
+    static final String ENCODING = "UTF-8";
+
+    /**
+     * Logs being computed, by index key.
+     */
+    private static final ConcurrentMap<String, FutureTask<String>> inflight = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private BazaarChangeLogStore() {
+    }
+
+    /**
+     * Writes the output of bzr log.
+     */
+    interface Producer {
+        /**
+         * @return
+         *      false if bzr log failed.
+         */
+        boolean write(OutputStream out) throws IOException, InterruptedException;
+    }
+
+    private static File getStoreDir() {
+        return new File(Hudson.getInstance().getRootDir(), STORE_DIR);
+    }
+
+    /**
+     * Gets the log of a revision range, computing it with the given producer
+     * if it isn't stored yet.
+     *
+     * @return
+     *      the digest of the stored log, or null if the producer failed.
+     */
+    static String store(String source, String oldRevid, String newRevid, final Producer producer)
+            throws IOException, InterruptedException {
+        final File index = new File(new File(getStoreDir(), "index"),
+                Util.getDigestOf(normalize(source) + '\n' + oldRevid + '\n' + newRevid));
+        String digest = readIndex(index);
+        if (digest != null) {
+            return digest;
+        }
+
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                String digest = write(producer);
+                if (digest == null) {
+                    return null;
+                }
+                writeAtomically(index, digest.getBytes("US-ASCII"));
+                return digest;
+            }
+        });
+        FutureTask<String> running = inflight.putIfAbsent(index.getName(), task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inflight.remove(index.getName());
+            }
+            running = task;
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw (IOException) new IOException("Failed to compute the change log of " + source).initCause(cause);
+        }
+    }
+
+    private static String readIndex(File index) throws IOException {
+        if (!index.isFile()) {
+            return null;
+        }
+        String digest = readDigest(index);
+        if (digest == null || !getLogFile(digest).isFile()) {
+            return null;
+        }
+        // used again, keep it away from the pruner for a while
+        getLogFile(digest).setLastModified(System.currentTimeMillis());
+        return digest;
+    }
+
+    private static String readDigest(File index) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(index));
+        try {
+            return Util.fixEmptyAndTrim(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Streams a log to a temporary file, computing its digest on the way, and
+     * stores it under that digest unless it already is.
+     *
+     * @return
+     *      the digest, or null if the producer failed.
+     */
+    private static String write(Producer producer) throws IOException, InterruptedException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw (IOException) new IOException("MD5 is not available").initCause(e);
+        }
+        File dir = getStoreDir();
+        dir.mkdirs();
+        File tmp = File.createTempFile("log", ".tmp", dir);
+        try {
+            OutputStream out = new DigestOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)), md5);
+            boolean written;
+            try {
+                written = producer.write(out);
+            } finally {
+                out.close();
+            }
+            if (!written) {
+                return null;
+            }
+
+            String digest = Util.toHexString(md5.digest());
+            File file = getLogFile(digest);
+            if (!file.isFile()) {
+                file.getParentFile().mkdirs();
+                if (!tmp.renameTo(file) && !file.isFile()) {
+                    throw new IOException("Failed to write " + file);
+                }
+            }
+            return digest;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    private static File getLogFile(String digest) {
+        return new File(new File(getStoreDir(), digest.substring(0, 2)), digest + ".gz");
+    }
+
+    /**
+     * Makes the change log of a build point to a stored log.
+     */
+    static void writeReference(File changelogFile, String digest) throws IOException {
+        OutputStream out = new FileOutputStream(changelogFile);
+        try {
+            out.write((REFERENCE + digest + "\n").getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens the change log of a build, following its reference to the store if
+     * it has one, and decompressing it on the fly if it was written gzipped.
+     */
+    static Reader open(File changelogFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(changelogFile));
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            return new InputStreamReader(new GZIPInputStream(in), ENCODING);
+        }
+        in.close();
+
+        String digest = readReference(changelogFile);
+        if (digest != null) {
+            return new InputStreamReader(new GZIPInputStream(new FileInputStream(getLogFile(digest))), ENCODING);
+        }
+        return new InputStreamReader(new FileInputStream(changelogFile), ENCODING);
+    }
+
+    /**
+     * Gets the digest of the stored log the change log of a build points to.
+     *
+     * @return
+     *      null if it holds a log of its own.
+     */
+    private static String readReference(File changelogFile) throws IOException {
+        if (!changelogFile.isFile() || changelogFile.length() >= 128) {
+            return null;
+        }
+        BufferedReader header = new BufferedReader(new InputStreamReader(new FileInputStream(changelogFile), ENCODING));
+        String line;
+        try {
+            line = header.readLine();
+        } finally {
+            header.close();
+        }
+        if (line != null && line.startsWith(REFERENCE)) {
+            return line.substring(REFERENCE.length()).trim();
+        }
+        return null;
+    }
+
+    private static String normalize(String source) {
+        String s = source.trim();
+        while (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+
+    /**
+     * Deletes the stored logs that no build refers to any more, once a day,
+     * and the index entries of deleted logs. A log stored or used in the last
+     * day is kept, as the build it was for may not have written its reference
+     * yet.
+     */
+    @Extension
+    public static class Pruner extends AsyncPeriodicWork {
+
+        public Pruner() {
+            super("Bazaar change log pruning");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return DAY;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            File store = getStoreDir();
+            if (!store.isDirectory()) {
+                return;
+            }
+
+            // build directories are listed rather than loaded, there may be many
+            Set<String> referenced = new HashSet<String>();
+            for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+                File[] builds = project.getBuildDir().listFiles();
+                if (builds == null) {
+                    continue;
+                }
+                for (File build : builds) {
+                    String digest = readReference(new File(build, "changelog.xml"));
+                    if (digest != null) {
+                        referenced.add(digest);
+                    }
+                }
+            }
+
+            long expired = System.currentTimeMillis() - DAY;
+            int deleted = 0;
+            File[] dirs = store.listFiles();
+            for (File dir : dirs == null ? new File[0] : dirs) {
+                File[] files = dir.listFiles();
+                if (dir.getName().equals("index") || files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    if (file.lastModified() < expired
+                            && !(name.endsWith(".gz") && referenced.contains(name.substring(0, name.length() - 3)))
+                            && file.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+            File[] tmps = store.listFiles();
+            for (File tmp : tmps == null ? new File[0] : tmps) {
+                // left by a master that died while storing a log
+                if (tmp.isFile() && tmp.lastModified() < expired) {
+                    tmp.delete();
+                }
+            }
+
+            File[] indexes = new File(store, "index").listFiles();
+            for (File index : indexes == null ? new File[0] : indexes) {
+                String digest = index.isFile() ? readDigest(index) : null;
+                if (index.lastModified() < expired && (digest == null || !getLogFile(digest).isFile())) {
+                    index.delete();
+                }
+            }
+            listener.getLogger().println("Deleted " + deleted + " change logs no build refers to");
+        }
+    }
+}
@@ -24,12 +24,9 @@
  */
 package hudson.plugins.bazaar;
 
-import static hudson.Util.fixEmpty;
 import hudson.model.User;
 import hudson.scm.ChangeLogSet;
-import hudson.tasks.Mailer;
 
-import java.io.IOException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,10 +52,34 @@ public class BazaarChangeSet extends ChangeLogSet.Entry {
     private List<String> tags = new ArrayList<String>();
 
     private String date;
+    private long timestamp = -1;
+    private String timezone;
     private String msg;
 
     private boolean isMerge = false;
 
+    /**
+     * Number of revisions merged by this one found in the log, at any depth.
+     * Zero for a merge when the log was limited to the top level.
+     */
+    private int mergedCount;
+
+    /**
+     * Nesting level of this revision in the log, 0 for the top level.
+     */
+    private int depth;
+
+    /**
+     * Source this change comes from, for the additional locations of a
+     * multi-location job. Null for the main source.
+     */
+    private String location;
+
+    /**
+     * {@link User} resolved from the committer, looked up on first use.
+     */
+    private User user;
+
     private List<BazaarAffectedFile> affectedFiles = new ArrayList<BazaarAffectedFile>();
 
     /**
@@ -74,24 +95,23 @@ public class BazaarChangeSet extends ChangeLogSet.Entry {
      */
     @Exported
     public User getAuthor() {
-        User user = User.get(author, false);
-
         if (user == null) {
-            user = User.get(author, true);
-
-            // set email address for user
-            if (fixEmpty(authorEmail) != null) {
-                try {
-                    user.addProperty(new Mailer.UserProperty(authorEmail));
-                } catch (IOException e) {
-                    // ignore error
-                }
-            }
+            user = BazaarAuthorCache.get(author, authorEmail);
         }
-
         return user;
     }
 
+    /**
+     * Gets the committer name as it appears in the log.
+     */
+    String getAuthorName() {
+        return author;
+    }
+
+    String getAuthorEmail() {
+        return authorEmail;
+    }
+
     /**
      * Gets repository revision number, which is local in the current repository.
      */
@@ -120,11 +140,42 @@ public class BazaarChangeSet extends ChangeLogSet.Entry {
         return date;
     }
 
+    /**
+     * Gets the commit time in milliseconds since the epoch, or -1 if unknown.
+     */
+    @Override
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the timezone the change was committed in, like <tt>+0100</tt>.
+     */
+    @Exported
+    public String getTimezone() {
+        return timezone;
+    }
+
     @Exported
     public boolean isMerge() {
         return this.isMerge;
     }
 
+    @Exported
+    public int getMergedCount() {
+        return mergedCount;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    @Exported
+    public String getLocation() {
+        return location;
+    }
+
     @Override
     public Collection<String> getAffectedPaths() {
         return new AbstractList<String>() {
@@ -175,10 +226,30 @@ public class BazaarChangeSet extends ChangeLogSet.Entry {
         this.date = date;
     }
 
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setTimezone(String timezone) {
+        this.timezone = timezone;
+    }
+
     public void setMerge(boolean isMerge) {
         this.isMerge = isMerge;
     }
 
+    public void setMergedCount(int mergedCount) {
+        this.mergedCount = mergedCount;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
     public void addAffectedFile(BazaarAffectedFile affectedFile) {
         affectedFile.setChangeSet(this);
         this.affectedFiles.add(affectedFile);
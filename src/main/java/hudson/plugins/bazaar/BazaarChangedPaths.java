@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paths changed in a source between two revisions, as used by path-filtered
+ * polling.
+ *
+ * <p>
+ * Many jobs usually poll the same branch, each caring about a subtree of it,
+ * and all of them see the same new revision at about the same time. The paths
+ * are computed once per source and revision range, by whichever job asks
+ * first, and the other ones wait for that result.
+ * </p>
+ */
+final class BazaarChangedPaths {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private BazaarChangedPaths() {
+    }
+
+    /**
+     * Gets the paths changed in a source from one revision to another, relative
+     * to the root of the branch. Renamed files count under both names.
+     *
+     * @return
+     *      null if they could not be computed.
+     */
+    static Set<String> get(Launcher launcher, TaskListener listener, String source,
+                           String oldRevid, String newRevid) throws InterruptedException {
+        String key = normalize(source) + '\n' + oldRevid + '\n' + newRevid;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+        }
+
+        synchronized (entry) {
+            if (!entry.computed) {
+                entry.paths = compute(launcher, listener, source, oldRevid, newRevid);
+                // a failure is not kept, the next poll will try again
+                entry.computed = entry.paths != null;
+            }
+            return entry.paths;
+        }
+    }
+
+    private static Set<String> compute(Launcher launcher, TaskListener listener, String source,
+                                       String oldRevid, String newRevid) throws InterruptedException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe(), "log", "-v", "--long", "--show-ids",
+                 "-r", "revid:" + oldRevid + "..revid:" + newRevid, source);
+        try {
+            int ret = launcher.launch().cmds(args).stdout(log).stderr(listener.getLogger()).join();
+            if (ret != 0) {
+                logger.log(Level.WARNING, "bzr log -v -r returned {0}", ret);
+                return null;
+            }
+
+            Set<String> paths = new HashSet<String>();
+            BazaarChangeLogReader in = new BazaarChangeLogReader(
+                    new InputStreamReader(new ByteArrayInputStream(log.toByteArray()), BazaarChangeLogStore.ENCODING));
+            try {
+                BazaarChangeSet cs;
+                while ((cs = in.next()) != null) {
+                    for (BazaarAffectedFile file : cs.getAffectedFiles()) {
+                        paths.add(stripKind(file.getPath()));
+                        if (file.getOldPath() != null) {
+                            paths.add(stripKind(file.getOldPath()));
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return Collections.unmodifiableSet(paths);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get the paths changed in " + source, e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the marker bzr appends to directories, symlinks and executables.
+     */
+    private static String stripKind(String path) {
+        if (path.length() > 1 && "/@*".indexOf(path.charAt(path.length() - 1)) >= 0) {
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static String normalize(String source) {
+        String s = source.trim();
+        while (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+
+    private static final class Entry {
+        boolean computed;
+        Set<String> paths;
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarChangedPaths.class.getName());
+}
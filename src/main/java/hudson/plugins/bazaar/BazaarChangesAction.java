@@ -0,0 +1,449 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.scm.SCM;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Remote API serving the change sets of a build page by page.
+ *
+ * <p>
+ * Unlike <tt>changes/api/json</tt>, the change sets are read straight from the
+ * stored bzr log and written out as they are read, so that only the requested
+ * page is ever held in memory. For example
+ * <tt>bzrChanges/?offset=100&amp;limit=50&amp;fields=revid,paths</tt>.
+ * </p>
+ *
+ * <p>
+ * The revisions merged by a change set are only listed when asked for, with
+ * <tt>bzrChanges/?merged=<i>revid</i></tt> or on the <tt>bzrChanges/merged</tt>
+ * page. They are read from the change log when it holds them, otherwise from
+ * the branch.
+ * </p>
+ *
+ * <p>
+ * Builds get it on checkout, and the builds of the version before it on
+ * startup, see {@link Attacher}.
+ * </p>
+ */
+public class BazaarChangesAction implements Action {
+
+    private static final List<String> ALL_FIELDS = Arrays.asList(
+            "revno", "revid", "author", "date", "timestamp", "msg", "tags", "merge", "mergedCount", "depth", "paths");
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private static final int MAX_MERGED_ENTRIES = 64;
+
+    /**
+     * Bytes of nested log read at most for one merge.
+     */
+    private static final long MAX_MERGED_LOG = 4 * 1024 * 1024;
+
+    /**
+     * Milliseconds before reading the revisions of a merge is tried again
+     * after it failed.
+     */
+    private static final long FAILURE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Revisions merged by a revision, read from bzr, by source and revision.
+     */
+    private static final Map<String, Merged> mergedFromBzr = new LinkedHashMap<String, Merged>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Merged> eldest) {
+            return size() > MAX_MERGED_ENTRIES;
+        }
+    };
+
+    private final AbstractBuild<?,?> build;
+
+    public BazaarChangesAction(AbstractBuild<?,?> build) {
+        this.build = build;
+    }
+
+    public AbstractBuild<?,?> getBuild() {
+        return build;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "bzrChanges";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        build.checkPermission(Item.READ);
+
+        int offset = Math.max(0, parseInt(req.getParameter("offset"), 0));
+        int limit = parseInt(req.getParameter("limit"), DEFAULT_LIMIT);
+        Set<String> fields = new HashSet<String>(ALL_FIELDS);
+        String fieldsParameter = req.getParameter("fields");
+        if (fieldsParameter != null && fieldsParameter.trim().length() > 0) {
+            fields.retainAll(Arrays.asList(fieldsParameter.trim().split("\\s*,\\s*")));
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"offset\":" + offset + ",\"changeSets\":[");
+
+        boolean hasMore = false;
+        File changelogFile = new File(build.getRootDir(), "changelog.xml");
+        String merged = req.getParameter("merged");
+        if (merged != null) {
+            List<BazaarChangeSet> changeSets;
+            try {
+                changeSets = getMergedChangeSets(merged);
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted while reading the merged revisions").initCause(e);
+            }
+            int end = limit >= 0 ? Math.min(changeSets.size(), offset + limit) : changeSets.size();
+            for (int i = offset; i < end; i++) {
+                if (i > offset) {
+                    w.print(',');
+                }
+                writeChangeSet(w, changeSets.get(i), fields);
+            }
+            hasMore = end < changeSets.size();
+        } else if (changelogFile.exists()) {
+            BazaarChangeLogReader in = new BazaarChangeLogReader(BazaarChangeLogStore.open(changelogFile));
+            try {
+                int index = 0;
+                int written = 0;
+                BazaarChangeSet cs;
+                while ((cs = in.next()) != null) {
+                    if (index++ < offset) {
+                        continue;
+                    }
+                    if (limit >= 0 && written >= limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    if (written++ > 0) {
+                        w.print(',');
+                    }
+                    writeChangeSet(w, cs, fields);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        w.print("],\"hasMore\":" + hasMore + "}");
+        w.flush();
+    }
+
+    private static void writeChangeSet(PrintWriter w, BazaarChangeSet cs, Set<String> fields) {
+        boolean first = true;
+        w.print('{');
+        if (fields.contains("revno")) {
+            first = writeName(w, "revno", first);
+            w.print(JSONUtils.quote(cs.getRevno()));
+        }
+        if (fields.contains("revid")) {
+            first = writeName(w, "revid", first);
+            w.print(JSONUtils.quote(cs.getRevid()));
+        }
+        if (fields.contains("author")) {
+            first = writeName(w, "author", first);
+            w.print(JSONUtils.quote(cs.getAuthorName()));
+        }
+        if (fields.contains("date")) {
+            first = writeName(w, "date", first);
+            w.print(JSONUtils.quote(cs.getDate()));
+        }
+        if (fields.contains("timestamp")) {
+            first = writeName(w, "timestamp", first);
+            w.print(cs.getTimestamp());
+        }
+        if (fields.contains("msg")) {
+            first = writeName(w, "msg", first);
+            w.print(JSONUtils.quote(cs.getMsg()));
+        }
+        if (fields.contains("tags")) {
+            first = writeName(w, "tags", first);
+            writeArray(w, cs.getTags());
+        }
+        if (fields.contains("merge")) {
+            first = writeName(w, "merge", first);
+            w.print(cs.isMerge());
+        }
+        if (fields.contains("mergedCount")) {
+            first = writeName(w, "mergedCount", first);
+            w.print(cs.getMergedCount());
+        }
+        if (fields.contains("depth")) {
+            first = writeName(w, "depth", first);
+            w.print(cs.getDepth());
+        }
+        if (fields.contains("paths")) {
+            first = writeName(w, "paths", first);
+            writeArray(w, cs.getAffectedPaths());
+        }
+        w.print('}');
+    }
+
+    /**
+     * Gets the revisions merged by a change set of the build, at all depths.
+     *
+     * @return
+     *      empty if the build has no such change set, or it merged nothing.
+     */
+    public List<BazaarChangeSet> getMergedChangeSets(String revid) throws IOException, InterruptedException {
+        build.checkPermission(Item.READ);
+
+        File changelogFile = new File(build.getRootDir(), "changelog.xml");
+        if (revid == null || !changelogFile.exists()) {
+            return Collections.emptyList();
+        }
+
+        BazaarChangeSet merge = null;
+        List<BazaarChangeSet> result = new ArrayList<BazaarChangeSet>();
+        BazaarChangeLogReader in = new BazaarChangeLogReader(BazaarChangeLogStore.open(changelogFile), true);
+        try {
+            BazaarChangeSet cs;
+            while ((cs = in.next()) != null) {
+                if (merge == null) {
+                    if (cs.getDepth() == 0 && revid.equals(cs.getRevid())) {
+                        merge = cs;
+                    }
+                } else if (cs.getDepth() > 0 && equal(cs.getLocation(), merge.getLocation())) {
+                    result.add(cs);
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (merge == null || !result.isEmpty() || !merge.isMerge()) {
+            return result;
+        }
+        // the change log was limited to the top levels
+        String source = merge.getLocation();
+        if (source == null) {
+            SCM scm = build.getProject().getScm();
+            if (!(scm instanceof BazaarSCM)) {
+                return result;
+            }
+            source = ((BazaarSCM) scm).getSource();
+        }
+        return readMerged(source, revid);
+    }
+
+    private static List<BazaarChangeSet> readMerged(String source, String revid) throws InterruptedException {
+        String key = source + '\n' + revid;
+        synchronized (mergedFromBzr) {
+            Merged merged = mergedFromBzr.get(key);
+            if (merged != null && System.currentTimeMillis() < merged.expires) {
+                return merged.changeSets;
+            }
+        }
+
+        List<BazaarChangeSet> changeSets = isReachableFromMaster(source) ? runLog(source, revid) : null;
+        Merged merged = new Merged(changeSets == null ? Collections.<BazaarChangeSet>emptyList() : changeSets,
+                changeSets == null ? System.currentTimeMillis() + FAILURE_TTL : Long.MAX_VALUE);
+        synchronized (mergedFromBzr) {
+            mergedFromBzr.put(key, merged);
+        }
+        return merged.changeSets;
+    }
+
+    /**
+     * Tells whether bzr on the master can read a source: a URL, or a path that
+     * exists on the master rather than only on the node that built the job.
+     */
+    private static boolean isReachableFromMaster(String source) {
+        // a single letter before the colon is a Windows drive
+        if (source.matches("[A-Za-z][A-Za-z0-9+.-]+:.*")) {
+            return true;
+        }
+        return new File(source).exists();
+    }
+
+    /**
+     * Reads the revisions merged by a revision with bzr log.
+     *
+     * @return
+     *      null if bzr log failed.
+     */
+    private static List<BazaarChangeSet> runLog(String source, String revid) throws InterruptedException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        Launcher launcher = Hudson.getInstance().createLauncher(TaskListener.NULL);
+        BazaarCapabilities capabilities = BazaarCapabilities.get(Hudson.getInstance(), launcher);
+        args.add(BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe(), "log", "-v", "--long", "--show-ids");
+        if (capabilities != null && capabilities.isLevels()) {
+            // older versions, and a bzr that could not be probed, show all the levels without it
+            args.add("-n0");
+        }
+        args.add("-r", "revid:" + revid, source);
+        List<BazaarChangeSet> merged = new ArrayList<BazaarChangeSet>();
+        try {
+            BazaarSCM.LimitedOutputStream out = new BazaarSCM.LimitedOutputStream(log, MAX_MERGED_LOG);
+            int ret = launcher.launch().cmds(args).stdout(out).join();
+            out.close();
+            if (ret != 0) {
+                logger.log(Level.WARNING, "bzr log -n0 -r returned {0}", ret);
+                return null;
+            }
+            if (out.isTruncated()) {
+                logger.log(Level.INFO, "Only read the first {0} bytes of the revisions merged by {1}",
+                        new Object[] {MAX_MERGED_LOG, revid});
+            }
+
+            BazaarChangeLogReader in = new BazaarChangeLogReader(
+                    new InputStreamReader(new ByteArrayInputStream(log.toByteArray()), BazaarChangeLogStore.ENCODING), true);
+            try {
+                BazaarChangeSet cs;
+                while ((cs = in.next()) != null) {
+                    if (cs.getDepth() > 0) {
+                        merged.add(cs);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the revisions merged by " + revid + " in " + source, e);
+            return null;
+        }
+        return merged;
+    }
+
+    private static final class Merged {
+        final List<BazaarChangeSet> changeSets;
+        /**
+         * When the entry is to be read again.
+         */
+        final long expires;
+
+        Merged(List<BazaarChangeSet> changeSets, long expires) {
+            this.changeSets = changeSets;
+            this.expires = expires;
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean writeName(PrintWriter w, String name, boolean first) {
+        if (!first) {
+            w.print(',');
+        }
+        w.print(JSONUtils.quote(name));
+        w.print(':');
+        return false;
+    }
+
+    private static void writeArray(PrintWriter w, Iterable<String> values) {
+        boolean first = true;
+        w.print('[');
+        for (String value : values) {
+            if (!first) {
+                w.print(',');
+            }
+            w.print(JSONUtils.quote(value));
+            first = false;
+        }
+        w.print(']');
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Adds the action to the builds of Bazaar jobs made before it existed,
+     * whose change logs it reads just as well. It isn't saved with them, so
+     * this is done at each startup.
+     */
+    @Extension
+    public static final class Attacher extends ItemListener {
+        @Override
+        public void onLoaded() {
+            for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+                if (!(project.getScm() instanceof BazaarSCM)) {
+                    continue;
+                }
+                for (AbstractBuild<?, ?> build : project.getBuilds()) {
+                    if (build.getAction(BazaarChangesAction.class) == null) {
+                        build.addAction(new BazaarChangesAction(build));
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarChangesAction.class.getName());
+}
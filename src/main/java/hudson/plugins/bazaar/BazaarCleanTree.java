@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes the unversioned files of a working tree on the node, using several
+ * threads.
+ *
+ * <p>
+ * This replaces <tt>bzr clean-tree</tt> on trees with huge numbers of build
+ * products: bzr only lists what is unversioned (unversioned directories are
+ * listed, not their content) and the deletion itself is done here.
+ * </p>
+ *
+ * <p>
+ * As with <tt>bzr clean-tree</tt>, nested bzr trees are left alone: any
+ * directory holding a <tt>.bzr</tt>, be it listed by bzr or found inside an
+ * unversioned directory, is kept with its content, and so are the directories
+ * leading to it.
+ * </p>
+ */
+final class BazaarCleanTree implements FileCallable<BazaarCleanTree.Stats> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> paths;
+
+    /**
+     * @param paths
+     *      unversioned paths, relative to the root of the tree.
+     */
+    BazaarCleanTree(List<String> paths) {
+        this.paths = paths;
+    }
+
+    public Stats invoke(File tree, VirtualChannel channel) throws IOException {
+        long start = System.currentTimeMillis();
+        Deleter deleter = new Deleter();
+        try {
+            for (String path : paths) {
+                if (path.length() == 0 || path.equals(".bzr") || path.startsWith(".bzr/")
+                        || path.equals("..") || path.startsWith("../") || path.contains("/../")) {
+                    continue;
+                }
+                deleter.delete(new File(tree, path));
+            }
+            deleter.await();
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted while cleaning the tree").initCause(e);
+        } finally {
+            deleter.shutdown();
+        }
+        return new Stats(deleter.files.get(), deleter.directories.get(), deleter.nested.get(),
+                         deleter.failures.get(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Outcome of a clean-up.
+     */
+    static final class Stats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int files;
+        final int directories;
+        /**
+         * Nested bzr trees kept.
+         */
+        final int nested;
+        final int failures;
+        final long duration;
+
+        Stats(int files, int directories, int nested, int failures, long duration) {
+            this.files = files;
+            this.directories = directories;
+            this.nested = nested;
+            this.failures = failures;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return "removed " + files + " files and " + directories + " directories in " + duration + " ms"
+                    + (nested > 0 ? ", kept " + nested + " nested bzr trees" : "")
+                    + (failures > 0 ? " (" + failures + " could not be removed)" : "");
+        }
+    }
+
+    /**
+     * Each directory is listed by a task of its own. A directory is removed by
+     * whichever task completes its last subdirectory, so no task ever waits for
+     * another.
+     */
+    private static final class Deleter {
+        private final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() * 2), new DaemonThreadFactory());
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicInteger directories = new AtomicInteger();
+        final AtomicInteger nested = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        void delete(File file) {
+            if (isNestedTree(file)) {
+                nested.incrementAndGet();
+            } else if (isDirectory(file)) {
+                submit(new Directory(file, null));
+            } else {
+                deleteFile(file);
+            }
+        }
+
+        void await() throws InterruptedException {
+            if (outstanding.decrementAndGet() == 0) {
+                finished.countDown();
+            }
+            finished.await();
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+
+        private void submit(final Directory dir) {
+            outstanding.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        list(dir);
+                    } finally {
+                        if (outstanding.decrementAndGet() == 0) {
+                            finished.countDown();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void list(Directory dir) {
+            File[] children = dir.file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (isNestedTree(child)) {
+                        nested.incrementAndGet();
+                        for (Directory d = dir; d != null; d = d.parent) {
+                            d.keep = true;
+                        }
+                    } else if (isDirectory(child)) {
+                        dir.pending.incrementAndGet();
+                        submit(new Directory(child, dir));
+                    } else {
+                        deleteFile(child);
+                    }
+                }
+            }
+            completed(dir);
+        }
+
+        private void completed(Directory dir) {
+            while (dir != null && dir.pending.decrementAndGet() == 0) {
+                if (dir.keep) {
+                    // holds a nested tree, and so do its parents
+                    return;
+                }
+                if (dir.file.delete()) {
+                    directories.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                }
+                dir = dir.parent;
+            }
+        }
+
+        private void deleteFile(File file) {
+            if (file.delete()) {
+                files.incrementAndGet();
+            } else if (file.exists()) {
+                failures.incrementAndGet();
+            }
+        }
+
+        private static boolean isNestedTree(File file) {
+            return isDirectory(file) && new File(file, ".bzr").exists();
+        }
+
+        private static boolean isDirectory(File file) {
+            try {
+                return file.isDirectory() && !Util.isSymlink(file);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class Directory {
+        final File file;
+        final Directory parent;
+        /**
+         * Subdirectories not removed yet, plus one until the directory itself is listed.
+         */
+        final AtomicInteger pending = new AtomicInteger(1);
+        /**
+         * Set once a nested tree is found below, before this directory completes.
+         */
+        volatile boolean keep;
+
+        Directory(File file, Directory parent) {
+            this.file = file;
+            this.parent = parent;
+        }
+    }
+}
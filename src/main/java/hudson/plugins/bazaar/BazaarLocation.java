@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Additional branch of a multi-location {@link BazaarSCM}, checked out into
+ * its own subdirectory of the workspace.
+ */
+public class BazaarLocation implements Serializable {
+
+    private final String source;
+    private final String workingDirectory;
+
+    @DataBoundConstructor
+    public BazaarLocation(String source, String workingDirectory) {
+        this.source = source;
+        this.workingDirectory = workingDirectory;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
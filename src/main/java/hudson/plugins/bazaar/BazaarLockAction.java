@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long the checkout of a build waited for {@link BazaarLocks}.
+ */
+@ExportedBean
+public class BazaarLockAction implements Action {
+
+    private long waitTime;
+
+    /**
+     * Adds the time a build waited for a lock to its total.
+     */
+    static void record(AbstractBuild<?, ?> build, long waited) {
+        if (waited <= 0) {
+            return;
+        }
+        synchronized (BazaarLockAction.class) {
+            BazaarLockAction action = build.getAction(BazaarLockAction.class);
+            if (action == null) {
+                action = new BazaarLockAction();
+                build.addAction(action);
+            }
+            action.waitTime += waited;
+        }
+    }
+
+    /**
+     * Milliseconds spent waiting for locks.
+     */
+    @Exported
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    public String getWaitTimeString() {
+        return Util.getTimeSpanString(waitTime);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Bazaar lock wait";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
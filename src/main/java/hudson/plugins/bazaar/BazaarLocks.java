@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes what this plugin does to a given bzr branch on a node:
+ * checkouts, cache updates, tagging and maintenance.
+ *
+ * <p>
+ * bzr fails right away when a branch is locked, and a failed pull used to
+ * cost the whole workspace. Here, whoever comes second waits for the first.
+ * Locks are keyed by the node name and canonical path, or by the source,
+ * and dropped once nobody holds or waits for them, so unrelated branches
+ * never wait for each other.
+ * </p>
+ *
+ * <p>
+ * bzr locks held on disk are checked as well: a lock taken on the same host
+ * by a process that no longer exists is stale, left by a killed build, and its
+ * <tt>held</tt> directory is removed. Any other lock is left alone. This is
+ * not <tt>bzr break-lock</tt>, which would also break the locks of the
+ * branch and repository and, through a checkout, those of its master.
+ * </p>
+ */
+final class BazaarLocks {
+
+    /**
+     * Minutes to wait for a branch before giving up.
+     */
+    static final int TIMEOUT = Integer.getInteger(BazaarLocks.class.getName() + ".timeout", 60);
+
+    /**
+     * Milliseconds between checks of a bzr lock held by another process.
+     */
+    private static final long LOCK_POLL_INTERVAL = 10000;
+
+    /**
+     * bzr locks found in a bzr directory itself. Those of the master of a
+     * checkout are somewhere else and never touched.
+     */
+    private static final String[] LOCKS = { "branch", "repository", "checkout" };
+
+    /**
+     * Locks in use, by key, with the number of threads holding or waiting for each.
+     */
+    private static final Map<String, KeyedLock> locks = new HashMap<String, KeyedLock>();
+
+    private BazaarLocks() {
+    }
+
+    /**
+     * Locks a branch on a node, waiting for at most {@link #TIMEOUT} minutes.
+     *
+     * @return
+     *      null if the branch is still locked after that.
+     */
+    static Lease acquire(Node node, FilePath branch, TaskListener listener) throws IOException, InterruptedException {
+        return acquire(node, branch, listener, TimeUnit.MINUTES.toMillis(TIMEOUT));
+    }
+
+    /**
+     * Locks a branch on a node, waiting for at most the given time.
+     *
+     * @return
+     *      null if the branch is still locked after that.
+     */
+    static Lease acquire(Node node, FilePath branch, TaskListener listener, long timeout) throws IOException, InterruptedException {
+        String nodeName = node == null ? "" : node.getNodeName();
+        return acquire(nodeName + '\n' + branch.act(new Canonicalizer()), listener, timeout);
+    }
+
+    /**
+     * Locks a source for operations done on it directly, like tagging,
+     * waiting for at most {@link #TIMEOUT} minutes.
+     *
+     * @return
+     *      null if the source is still locked after that.
+     */
+    static Lease acquireSource(String source, TaskListener listener) throws InterruptedException {
+        return acquire("source\n" + source, listener, TimeUnit.MINUTES.toMillis(TIMEOUT));
+    }
+
+    private static Lease acquire(String key, TaskListener listener, long timeout) throws InterruptedException {
+        KeyedLock lock;
+        synchronized (locks) {
+            lock = locks.get(key);
+            if (lock == null) {
+                lock = new KeyedLock(key);
+                locks.put(key, lock);
+            }
+            lock.users++;
+        }
+        long start = System.currentTimeMillis();
+        boolean locked = false;
+        try {
+            if (!lock.tryLock()) {
+                listener.getLogger().println("Waiting for another task using " + key.substring(key.indexOf('\n') + 1));
+                if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            }
+            locked = true;
+            return new Lease(lock, System.currentTimeMillis() - start);
+        } finally {
+            if (!locked) {
+                lock.leave();
+            }
+        }
+    }
+
+    /**
+     * Waits for the bzr locks of a branch to be released, for at most
+     * {@link #TIMEOUT} minutes, breaking those left by processes that died.
+     *
+     * @return
+     *      milliseconds waited, or -1 if the branch is still locked.
+     */
+    static long awaitUnlocked(FilePath branch, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + TimeUnit.MINUTES.toMillis(TIMEOUT);
+        boolean told = false;
+        boolean broken = false;
+        while (true) {
+            LockState state = branch.act(new LockInspector());
+            if (state == LockState.STALE) {
+                if (broken) {
+                    listener.error("The stale lock of " + branch + " is still there");
+                    return -1;
+                }
+                broken = true;
+                for (String lock : branch.act(new StaleLockRemover())) {
+                    listener.getLogger().println("Removed the stale bzr lock " + lock + " of " + branch);
+                }
+                continue;
+            }
+            if (state == LockState.NONE) {
+                return System.currentTimeMillis() - start;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return -1;
+            }
+            if (!told) {
+                listener.getLogger().println("Waiting for another bzr process to release " + branch);
+                told = true;
+            }
+            Thread.sleep(LOCK_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Tells whether a bzr process holds a lock on a branch.
+     */
+    static boolean isLocked(FilePath branch) throws IOException, InterruptedException {
+        return branch.act(new LockInspector()) == LockState.HELD;
+    }
+
+    /**
+     * A lock taken, to be released by the thread that took it.
+     */
+    static final class Lease {
+        private final KeyedLock lock;
+        private final long waited;
+
+        private Lease(KeyedLock lock, long waited) {
+            this.lock = lock;
+            this.waited = waited;
+        }
+
+        /**
+         * Milliseconds spent waiting for the lock.
+         */
+        long getWaited() {
+            return waited;
+        }
+
+        void release() {
+            lock.unlock();
+            lock.leave();
+        }
+    }
+
+    private static final class KeyedLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+
+        /**
+         * Threads holding or waiting for this lock, guarded by {@link BazaarLocks#locks}.
+         */
+        private int users;
+
+        private KeyedLock(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Drops this lock once its last user is gone.
+         */
+        private void leave() {
+            synchronized (locks) {
+                if (--users == 0) {
+                    locks.remove(key);
+                }
+            }
+        }
+    }
+
+    private static final class Canonicalizer implements FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        public String invoke(File f, VirtualChannel channel) throws IOException {
+            return f.getCanonicalPath();
+        }
+    }
+
+    enum LockState {
+        NONE, HELD, STALE
+    }
+
+    /**
+     * Looks at the <tt>held</tt> locks of the branch, repository and checkout
+     * of a bzr directory. A lock is stale when its <tt>info</tt> names this host
+     * and a process that <tt>/proc</tt> doesn't know of.
+     */
+    private static final class LockInspector implements FileCallable<LockState> {
+        private static final long serialVersionUID = 1L;
+
+        public LockState invoke(File dir, VirtualChannel channel) throws IOException {
+            LockState result = LockState.NONE;
+            for (String name : LOCKS) {
+                File held = new File(dir, ".bzr/" + name + "/lock/held");
+                if (!held.isDirectory()) {
+                    continue;
+                }
+                if (!isStale(new File(held, "info"))) {
+                    return LockState.HELD;
+                }
+                result = LockState.STALE;
+            }
+            return result;
+        }
+
+        static boolean isStale(File info) throws IOException {
+            if (!info.isFile() || !new File("/proc/self").isDirectory()) {
+                return false;
+            }
+            String hostname = null;
+            String pid = null;
+            BufferedReader in = new BufferedReader(new FileReader(info));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("hostname:")) {
+                        hostname = line.substring("hostname:".length()).trim();
+                    } else if (line.startsWith("pid:")) {
+                        pid = line.substring("pid:".length()).trim();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (hostname == null || pid == null || !pid.matches("[0-9]+")) {
+                return false;
+            }
+            String localHost = InetAddress.getLocalHost().getHostName();
+            if (!hostname.equals(localHost) && !hostname.equals(localHost.split("\\.")[0])) {
+                // taken on another host sharing this directory, we can't tell
+                return false;
+            }
+            return !new File("/proc/" + pid).exists();
+        }
+    }
+
+    /**
+     * Removes the <tt>held</tt> directories of the locks of a bzr directory
+     * that {@link LockInspector} finds stale, checking them again on the node
+     * right before. As bzr does when breaking a lock, the directory is first
+     * renamed so that no other process ever sees it half deleted.
+     */
+    private static final class StaleLockRemover implements FileCallable<ArrayList<String>> {
+        private static final long serialVersionUID = 1L;
+
+        public ArrayList<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            ArrayList<String> removed = new ArrayList<String>();
+            for (String name : LOCKS) {
+                File lock = new File(dir, ".bzr/" + name + "/lock");
+                File held = new File(lock, "held");
+                if (!held.isDirectory() || !LockInspector.isStale(new File(held, "info"))) {
+                    continue;
+                }
+                File broken = new File(lock, "broken." + Long.toString(System.nanoTime(), 36) + ".tmp");
+                if (!held.renameTo(broken)) {
+                    throw new IOException("Failed to move " + held + " away");
+                }
+                Util.deleteRecursive(broken);
+                removed.add(name);
+            }
+            return removed;
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Repacks the branches of workspaces and {@link BazaarCache}s that are not in
+ * use. After thousands of pulls, obsolete packs make a .bzr directory several
+ * times its packed size, and every bzr command slower.
+ * Branches are only packed when {@link BazaarLocks} shows nothing else uses them.
+ */
+@Extension
+public class BazaarMaintenance extends AsyncPeriodicWork {
+
+    /**
+     * Outcome of the last maintenance of each branch, by node name then path.
+     */
+    private static final Map<String, Map<String, Result>> results = new ConcurrentHashMap<String, Map<String, Result>>();
+
+    public BazaarMaintenance() {
+        super("Bazaar maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return DAY;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Hudson hudson = Hudson.getInstance();
+        for (Computer c : hudson.getComputers()) {
+            Node node = c.getNode();
+            if (node == null || c.isOffline()) {
+                continue;
+            }
+
+            for (FilePath workspace : getWorkspaces(hudson, node)) {
+                // reserve the workspace so that builds starting meanwhile get another one.
+                // allocate() never waits: it hands out the first free one of workspace,
+                // workspace@2, ..., all checked and taken under the lock of the list
+                WorkspaceList.Lease lease = c.getWorkspaceList().allocate(workspace);
+                if (!lease.path.equals(workspace)) {
+                    lease.release();
+                    listener.getLogger().println("Skipping " + workspace + ", a build is using it");
+                    continue;
+                }
+                try {
+                    pack(c, node, workspace, listener);
+                } finally {
+                    lease.release();
+                }
+            }
+
+            FilePath caches = node.getRootPath() == null ? null : node.getRootPath().child(BazaarCache.CACHE_DIR);
+            if (caches != null && caches.isDirectory()) {
+                for (FilePath cache : caches.listDirectories()) {
+                    if (!BazaarCache.beginMaintenance(node, cache)) {
+                        listener.getLogger().println("Skipping " + cache + ", it is being updated");
+                        continue;
+                    }
+                    try {
+                        pack(c, node, cache, listener);
+                    } finally {
+                        BazaarCache.endMaintenance(node, cache);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the branches of the Bazaar jobs last built on a node.
+     */
+    private static List<FilePath> getWorkspaces(Hudson hudson, Node node) {
+        List<FilePath> workspaces = new ArrayList<FilePath>();
+        for (AbstractProject<?, ?> project : hudson.getAllItems(AbstractProject.class)) {
+            if (!(project.getScm() instanceof BazaarSCM) || !(project instanceof TopLevelItem)
+                    || project.getLastBuiltOn() != node) {
+                continue;
+            }
+            BazaarSCM scm = (BazaarSCM) project.getScm();
+            if (scm.isExport()) {
+                continue;
+            }
+            FilePath workspace = node.getWorkspaceFor((TopLevelItem) project);
+            if (workspace != null) {
+                workspaces.add(workspace);
+            }
+        }
+        return workspaces;
+    }
+
+    /**
+     * Repacks the branches found in a directory: the directory itself, or
+     * its subdirectories for workspaces where the branch is in a working directory.
+     */
+    private void pack(Computer c, Node node, FilePath dir, TaskListener listener) throws InterruptedException {
+        try {
+            for (String branch : dir.act(new BranchFinder())) {
+                FilePath path = new FilePath(dir, branch);
+                BazaarLocks.Lease lease = BazaarLocks.acquire(node, path, listener, 0);
+                if (lease == null) {
+                    listener.getLogger().println("Skipping " + path + ", it is in use");
+                    continue;
+                }
+                try {
+                    long start = System.currentTimeMillis();
+                    long before = path.act(new BzrSize());
+
+                    ArgumentListBuilder args = new ArgumentListBuilder();
+                    args.add(BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe(), "pack", "--clean-obsolete-packs", path.getRemote());
+                    if (node.createLauncher(listener).launch().cmds(args).stdout(listener.getLogger()).join() != 0) {
+                        listener.error("Failed to pack " + path);
+                        continue;
+                    }
+
+                    Result result = new Result(path.getRemote(), before - path.act(new BzrSize()),
+                                               System.currentTimeMillis() - start);
+                    listener.getLogger().println("Packed " + path + ": " + result);
+                    getResultMap(node.getNodeName()).put(result.getPath(), result);
+                } finally {
+                    lease.release();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to pack " + dir));
+        }
+    }
+
+    private static Map<String, Result> getResultMap(String nodeName) {
+        synchronized (results) {
+            Map<String, Result> map = results.get(nodeName);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, Result>();
+                results.put(nodeName, map);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Gets the outcome of the last maintenance of the branches of a node.
+     */
+    public static List<Result> getResults(Node node) {
+        Map<String, Result> map = results.get(node.getNodeName());
+        if (map == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Result>(map.values());
+    }
+
+    /**
+     * Outcome of the repacking of a branch.
+     */
+    public static final class Result {
+        private final String path;
+        private final long reclaimed;
+        private final long duration;
+        private final long timestamp = System.currentTimeMillis();
+
+        Result(String path, long reclaimed, long duration) {
+            this.path = path;
+            this.reclaimed = reclaimed;
+            this.duration = duration;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Bytes freed in the .bzr directory.
+         */
+        public long getReclaimed() {
+            return reclaimed;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getAge() {
+            return Util.getTimeSpanString(System.currentTimeMillis() - timestamp);
+        }
+
+        @Override
+        public String toString() {
+            return "reclaimed " + (reclaimed / 1024) + " KB in " + duration + " ms";
+        }
+    }
+
+    /**
+     * Finds the standalone branches in or right below a directory, leaving
+     * out those whose repository is locked by a running bzr command.
+     * Lightweight checkouts have no repository of their own and are never packed.
+     */
+    private static final class BranchFinder implements FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            List<String> branches = new ArrayList<String>();
+            if (new File(dir, ".bzr/repository").isDirectory()) {
+                if (!isLocked(dir)) {
+                    branches.add(".");
+                }
+                return branches;
+            }
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (new File(child, ".bzr/repository").isDirectory() && !isLocked(child)) {
+                        branches.add(child.getName());
+                    }
+                }
+            }
+            return branches;
+        }
+
+        private static boolean isLocked(File branch) {
+            return new File(branch, ".bzr/repository/lock/held").exists()
+                    || new File(branch, ".bzr/branch/lock/held").exists();
+        }
+    }
+
+    /**
+     * Computes the size of the .bzr directory of a branch.
+     */
+    private static final class BzrSize implements FileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+
+        public Long invoke(File dir, VirtualChannel channel) throws IOException {
+            return size(new File(dir, ".bzr"), new HashSet<String>());
+        }
+
+        private static long size(File file, Set<String> visited) throws IOException {
+            if (!file.isDirectory()) {
+                return file.length();
+            }
+            if (Util.isSymlink(file) || !visited.add(file.getCanonicalPath())) {
+                return 0;
+            }
+            long size = 0;
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    size += size(child, visited);
+                }
+            }
+            return size;
+        }
+    }
+}
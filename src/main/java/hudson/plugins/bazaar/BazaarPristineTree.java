@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+
+/**
+ * Branches with a working tree kept on a node, under <tt>bazaar-pristine</tt>
+ * in its root directory, that new workspaces are copied from.
+ *
+ * <p>
+ * Building a large working tree with bzr writes every file through bzr, which
+ * is slow. Copying one is much faster, and almost free on filesystems that can
+ * share blocks between files. The copy is made in the first of these ways that
+ * works on the node:
+ * </p>
+ * <ol>
+ * <li>a reflink copy, where the filesystem supports it (btrfs, XFS, ...);</li>
+ * <li>a plain copy, except for the pack files of the repository which are
+ * hard linked: bzr never modifies a pack once written;</li>
+ * <li>a plain copy.</li>
+ * </ol>
+ * <p>
+ * This relies on GNU <tt>cp</tt> and <tt>tar</tt>, so on other nodes the
+ * workspace is simply branched as usual.
+ * </p>
+ * <p>
+ * A pristine tree that fails to pull is kept for the next build, and only
+ * deleted when <tt>bzr check</tt> finds it broken.
+ * </p>
+ */
+final class BazaarPristineTree {
+
+    static final String PRISTINE_DIR = "bazaar-pristine";
+
+    /**
+     * Copies a tree, hard linking the repository packs and indices.
+     * The two arguments are the source and target directories.
+     */
+    private static final String HARDLINK_COPY =
+            "cd \"$1\" && tar --exclude=./.bzr/repository/packs --exclude=./.bzr/repository/indices -cf - . | tar -C \"$2\" -xf - "
+            + "&& cp -al .bzr/repository/packs .bzr/repository/indices \"$2/.bzr/repository/\"";
+
+    /**
+     * Times a failed pull of a pristine tree is tried before giving up.
+     */
+    private static final int PULL_ATTEMPTS = 3;
+
+    /**
+     * Milliseconds between two attempts.
+     */
+    private static final long PULL_RETRY_DELAY = 10000;
+
+    private BazaarPristineTree() {
+    }
+
+    static FilePath getTreeDir(Node node, String source) {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return null;
+        }
+        return root.child(PRISTINE_DIR).child(Util.getDigestOf(source));
+    }
+
+    /**
+     * Brings the pristine tree of a source up to date, then copies it to the
+     * workspace, which must not exist.
+     *
+     * @return
+     *      false if the workspace could not be made that way.
+     */
+    static boolean materialize(Node node, Launcher launcher, String source, FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath tree = node == null ? null : getTreeDir(node, source);
+        if (tree == null) {
+            return false;
+        }
+
+        BazaarLocks.Lease lease = BazaarLocks.acquire(node, tree, listener);
+        if (lease == null) {
+            listener.getLogger().println("The pristine tree of " + source + " is busy, not using it");
+            return false;
+        }
+        try {
+            if (!update(node, launcher, source, tree, listener)) {
+                return false;
+            }
+
+            workspace.deleteRecursive();
+            workspace.mkdirs();
+            if (reflinkSupported(launcher, tree, workspace)) {
+                listener.getLogger().println("Copying the pristine tree " + tree + " with reflinks");
+                if (run(launcher, listener, "cp", "-a", "--reflink=always", tree.getRemote() + "/.", workspace.getRemote())) {
+                    return true;
+                }
+                workspace.deleteContents();
+            }
+            if (tree.child(".bzr/repository/packs").isDirectory()) {
+                listener.getLogger().println("Copying the pristine tree " + tree + ", hard linking its packs");
+                if (run(launcher, listener, "sh", "-c", HARDLINK_COPY, "sh", tree.getRemote(), workspace.getRemote())) {
+                    return true;
+                }
+                workspace.deleteContents();
+            }
+            listener.getLogger().println("Copying the pristine tree " + tree);
+            if (run(launcher, listener, "cp", "-a", tree.getRemote() + "/.", workspace.getRemote())) {
+                return true;
+            }
+            workspace.deleteRecursive();
+            return false;
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Creates the pristine tree, from the node cache when there is one, or
+     * pulls the new revisions of the source into it.
+     */
+    private static boolean update(Node node, Launcher launcher, String source, FilePath tree, TaskListener listener)
+            throws IOException, InterruptedException {
+        String bzrExe = BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe();
+        if (!tree.child(".bzr").exists()) {
+            FilePath cache = BazaarCache.getExistingCacheDir(node, source);
+            String from = cache != null ? cache.getRemote() : source;
+            tree.getParent().mkdirs();
+            tree.deleteRecursive();
+            listener.getLogger().println("Creating the pristine tree of " + source + " from " + from);
+            if (!run(launcher, listener, bzrExe, "branch", from, tree.getRemote())) {
+                tree.deleteRecursive();
+                return false;
+            }
+        }
+        for (int attempt = 1; !pull(launcher, listener, bzrExe, source, tree); attempt++) {
+            if (attempt == PULL_ATTEMPTS) {
+                // most likely the network: keep the tree for the next build,
+                // unless the failure left it broken
+                if (!run(launcher, listener, bzrExe, "check", "--branch", "--tree", tree.getRemote())) {
+                    listener.getLogger().println("The pristine tree of " + source + " is corrupt, deleting it");
+                    tree.deleteRecursive();
+                } else {
+                    run(launcher, listener, bzrExe, "revert", "--no-backup", tree.getRemote());
+                }
+                return false;
+            }
+            listener.getLogger().println("Failed to update the pristine tree of " + source + ", trying again");
+            Thread.sleep(PULL_RETRY_DELAY);
+        }
+        return true;
+    }
+
+    private static boolean pull(Launcher launcher, TaskListener listener, String bzrExe, String source, FilePath tree)
+            throws InterruptedException {
+        return run(launcher, listener, bzrExe, "pull", "--overwrite", "--remember", "-d", tree.getRemote(), source);
+    }
+
+    /**
+     * Checks whether the filesystem can reflink from the tree to the workspace.
+     */
+    private static boolean reflinkSupported(Launcher launcher, FilePath tree, FilePath workspace)
+            throws IOException, InterruptedException {
+        FilePath probe = workspace.child(".reflink-probe");
+        try {
+            return launcher.launch().cmds("cp", "--reflink=always", tree.child(".bzr/branch-format").getRemote(), probe.getRemote())
+                    .stdout(TaskListener.NULL).join() == 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            probe.delete();
+        }
+    }
+
+    private static boolean run(Launcher launcher, TaskListener listener, String... cmds) throws InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(cmds);
+        try {
+            return launcher.launch().cmds(args).stdout(listener.getLogger()).join() == 0;
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to run " + args));
+            return false;
+        }
+    }
+}
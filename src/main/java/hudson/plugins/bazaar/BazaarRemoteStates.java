@@ -0,0 +1,391 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.triggers.SCMTrigger;
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remote revisions of the polled sources, fetched in the background.
+ *
+ * <p>
+ * Polling a slow branch would otherwise hold a Jenkins polling thread for the
+ * whole bzr round trip. Instead polling returns the last revision known for
+ * the source right away and queues a refresh of it; refreshes run on a small
+ * pool, at most one per source at a time. When a refresh finds a new revision,
+ * the jobs polling that source are scheduled for polling again so that they
+ * pick it up without waiting for their next period.
+ * </p>
+ *
+ * <p>
+ * The revisions known for each source, and the polling baseline of each job,
+ * are saved in the background to <tt>bazaar-remote-states.txt</tt> in the
+ * Jenkins home directory and read back on the first poll after a restart.
+ * For a while after that, polls use the saved revisions rather than all
+ * asking the bzr servers at once, see {@link #isDeferred(String)}.
+ * The baselines follow their jobs when renamed and go away with them.
+ * </p>
+ */
+public final class BazaarRemoteStates {
+
+    private static final String STATE_FILE = "bazaar-remote-states.txt";
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Baseline of the last poll of each job, by full name.
+     */
+    private static final Map<String, BazaarRevisionState> jobStates = new ConcurrentHashMap<String, BazaarRevisionState>();
+
+    /**
+     * Writes the state file a few seconds after a change, so that a wave of
+     * polls causes a single write.
+     */
+    private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    private static final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * When the states were loaded, which is the first poll after a restart.
+     */
+    private static final long started = System.currentTimeMillis();
+
+    static {
+        load();
+    }
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+
+    private BazaarRemoteStates() {
+    }
+
+    /**
+     * Gets the last known revision of a source and queues a refresh of it,
+     * unless one is already pending.
+     *
+     * @param fetcher
+     *      gets the current revision of the source, or null if that failed.
+     * @return
+     *      null if no revision is known yet.
+     */
+    static BazaarRevisionState poll(final String source, final Callable<BazaarRevisionState> fetcher) {
+        final Entry entry = getEntry(source);
+        synchronized (entry) {
+            if (entry.pending) {
+                return entry.state;
+            }
+            entry.pending = true;
+        }
+
+        resize(BazaarSCM.DescriptorImpl.DESCRIPTOR.getMaxConcurrentPolls());
+        executor.execute(new Runnable() {
+            public void run() {
+                BazaarRevisionState state = null;
+                try {
+                    state = fetcher.call();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to get the remote revision of " + source, e);
+                } finally {
+                    synchronized (entry) {
+                        entry.pending = false;
+                    }
+                }
+                if (state != null && !state.equals(entry.state)) {
+                    record(source, state);
+                    changed(source);
+                } else if (state != null) {
+                    entry.lastUpdated = System.currentTimeMillis();
+                }
+            }
+        });
+        return entry.state;
+    }
+
+    /**
+     * Records the current revision of a source.
+     */
+    static void record(String source, BazaarRevisionState state) {
+        Entry entry = getEntry(source);
+        entry.lastUpdated = System.currentTimeMillis();
+        if (!state.equals(entry.state)) {
+            entry.state = state;
+            saveLater();
+        }
+    }
+
+    /**
+     * Gets the last revision known for a source, if any.
+     */
+    static BazaarRevisionState getLastKnown(String source) {
+        Entry entry = entries.get(source);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Tells whether polling of a source should stay away from the server and
+     * use the last known revision, because Jenkins just started. Sources are
+     * spread evenly over the startup window.
+     */
+    static boolean isDeferred(String source) {
+        long window = BazaarSCM.DescriptorImpl.DESCRIPTOR.getStartupPollWindow() * 60000L;
+        if (window <= 0) {
+            return false;
+        }
+        long offset = (source.hashCode() & 0x7fffffffL) % window;
+        return System.currentTimeMillis() < started + offset;
+    }
+
+    static void recordJobState(String job, BazaarRevisionState state) {
+        if (!state.equals(jobStates.put(job, state))) {
+            saveLater();
+        }
+    }
+
+    static BazaarRevisionState getJobState(String job) {
+        return jobStates.get(job);
+    }
+
+    /**
+     * Moves the baselines of a job, and of the jobs inside it, to a new name.
+     */
+    static void renameJob(String oldName, String newName) {
+        Map<String, BazaarRevisionState> moved = new HashMap<String, BazaarRevisionState>();
+        for (Iterator<Map.Entry<String, BazaarRevisionState>> it = jobStates.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, BazaarRevisionState> e = it.next();
+            String job = e.getKey();
+            if (job.equals(oldName) || job.startsWith(oldName + '/')) {
+                moved.put(newName + job.substring(oldName.length()), e.getValue());
+                it.remove();
+            }
+        }
+        if (!moved.isEmpty()) {
+            jobStates.putAll(moved);
+            saveLater();
+        }
+    }
+
+    /**
+     * Forgets the baselines of a deleted job and of the jobs inside it, so
+     * that a new job of the same name doesn't start from them.
+     */
+    static void removeJob(String name) {
+        boolean changed = false;
+        for (Iterator<String> it = jobStates.keySet().iterator(); it.hasNext();) {
+            String job = it.next();
+            if (job.equals(name) || job.startsWith(name + '/')) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            saveLater();
+        }
+    }
+
+    private static void saveLater() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(new Runnable() {
+                public void run() {
+                    saveScheduled.set(false);
+                    save();
+                }
+            }, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static File getStateFile() {
+        return new File(Hudson.getInstance().getRootDir(), STATE_FILE);
+    }
+
+    /**
+     * Writes one line per source (<tt>S</tt>) and per job (<tt>J</tt>): the
+     * name, then the revno and revid of each location, tab separated.
+     */
+    private static void save() {
+        try {
+            AtomicFileWriter w = new AtomicFileWriter(getStateFile());
+            try {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    BazaarRevisionState state = e.getValue().state;
+                    if (state != null) {
+                        writeLine(w, "S", e.getKey(), state);
+                    }
+                }
+                for (Map.Entry<String, BazaarRevisionState> e : jobStates.entrySet()) {
+                    writeLine(w, "J", e.getKey(), e.getValue());
+                }
+                w.commit();
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + STATE_FILE, e);
+        }
+    }
+
+    private static void writeLine(Writer w, String kind, String name, BazaarRevisionState state) throws IOException {
+        w.write(kind + '\t' + name + '\t' + state.getRevNo() + '\t' + state.getRevId());
+        for (BazaarRevisionState additional : state.getAdditionalStates()) {
+            w.write('\t' + additional.getRevNo() + '\t' + additional.getRevId());
+        }
+        w.write('\n');
+    }
+
+    private static void load() {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return;
+        }
+        File file = getStateFile();
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 4 || fields.length % 2 != 0) {
+                        continue;
+                    }
+                    List<BazaarRevisionState> additional = new ArrayList<BazaarRevisionState>();
+                    for (int i = 4; i < fields.length; i += 2) {
+                        additional.add(new BazaarRevisionState(fields[i], fields[i + 1]));
+                    }
+                    BazaarRevisionState state = new BazaarRevisionState(fields[2], fields[3], additional);
+                    if (fields[0].equals("S")) {
+                        getEntry(fields[1]).state = state;
+                    } else if (fields[0].equals("J")) {
+                        jobStates.put(fields[1], state);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load " + STATE_FILE, e);
+        }
+    }
+
+    private static Entry getEntry(String source) {
+        synchronized (entries) {
+            Entry entry = entries.get(source);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(source, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static synchronized void resize(int size) {
+        size = Math.max(1, size);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Schedules the polling of the jobs of a source whose revision changed.
+     */
+    private static void changed(String source) {
+        for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            if (!(project.getScm() instanceof BazaarSCM) || project.isDisabled()
+                    || !source.equals(((BazaarSCM) project.getScm()).getSource())) {
+                continue;
+            }
+            SCMTrigger trigger = project.getTrigger(SCMTrigger.class);
+            if (trigger != null) {
+                trigger.run();
+            }
+        }
+    }
+
+    /**
+     * Keeps the saved baselines in line with the jobs, including those
+     * deleted while the plugin wasn't there.
+     */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            Hudson hudson = Hudson.getInstance();
+            for (String job : new ArrayList<String>(jobStates.keySet())) {
+                if (hudson.getItemByFullName(job) == null) {
+                    removeJob(job);
+                }
+            }
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            String parent = item.getParent().getFullName();
+            String prefix = parent.length() == 0 ? "" : parent + '/';
+            renameJob(prefix + oldName, prefix + newName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            removeJob(item.getFullName());
+        }
+    }
+
+    private static final class Entry {
+        volatile BazaarRevisionState state;
+        volatile long lastUpdated;
+        boolean pending;
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarRemoteStates.class.getName());
+}
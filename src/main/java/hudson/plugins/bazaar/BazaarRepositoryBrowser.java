@@ -27,6 +27,8 @@ import hudson.scm.RepositoryBrowser;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * {@link RepositoryBrowser} for Bazaar.
@@ -53,6 +55,87 @@ public abstract class BazaarRepositoryBrowser extends RepositoryBrowser<BazaarCh
      */
     public abstract URL getFileLink(BazaarAffectedFile affectedFile) throws IOException;
 
+    /**
+     * Gets the value of a named placeholder of a {@link LinkTemplate} for a change set.
+     */
+    protected String getChangeSetValue(BazaarChangeSet changeSet, String name) {
+        if ("revno".equals(name)) {
+            return changeSet.getRevno();
+        } else if ("revid".equals(name)) {
+            return changeSet.getRevid();
+        }
+        throw new IllegalArgumentException("Unknown link placeholder: " + name);
+    }
+
+    /**
+     * Builds a link from a template.
+     *
+     * @param base
+     *      URL the template is relative to. Must end with '/'.
+     * @param args
+     *      values of the numbered placeholders.
+     * @return
+     *      null for the changes of the additional locations of a
+     *      multi-location job, which the browser knows nothing about.
+     */
+    protected final URL createLink(URL base, LinkTemplate template, BazaarChangeSet changeSet, String... args) throws IOException {
+        if (changeSet.getLocation() != null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(base.toExternalForm());
+        String[] literals = template.literals;
+        String[] names = template.names;
+        for (int i = 0; i < names.length; i++) {
+            buf.append(literals[i]);
+            String name = names[i];
+            if (Character.isDigit(name.charAt(0))) {
+                buf.append(args[Integer.parseInt(name)]);
+            } else {
+                buf.append(getChangeSetValue(changeSet, name));
+            }
+        }
+        buf.append(literals[names.length]);
+        return new URL(buf.toString());
+    }
+
+    /**
+     * URL pattern relative to the browser URL, split into literal text and
+     * placeholders once rather than formatted for every file.
+     *
+     * <p>
+     * Named placeholders like <tt>{revno}</tt> depend on the change set only,
+     * see {@link BazaarRepositoryBrowser#getChangeSetValue(BazaarChangeSet, String)}.
+     * Numbered ones like <tt>{0}</tt> are given for each link.
+     * </p>
+     */
+    protected static final class LinkTemplate {
+        private final String[] literals;
+        private final String[] names;
+
+        private LinkTemplate(String[] literals, String[] names) {
+            this.literals = literals;
+            this.names = names;
+        }
+
+        public static LinkTemplate compile(String pattern) {
+            List<String> literals = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            int start = 0;
+            int open;
+            while ((open = pattern.indexOf('{', start)) >= 0) {
+                int close = pattern.indexOf('}', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in " + pattern);
+                }
+                literals.add(pattern.substring(start, open));
+                names.add(pattern.substring(open + 1, close));
+                start = close + 1;
+            }
+            literals.add(pattern.substring(start));
+            return new LinkTemplate(literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+        }
+    }
+
     protected static boolean isRenaming(BazaarAffectedFile affectedFile) {
         return affectedFile.getOldPath() != null;
     }
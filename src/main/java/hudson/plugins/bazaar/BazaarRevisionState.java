@@ -32,6 +32,10 @@ package hudson.plugins.bazaar;
 
 import hudson.scm.SCMRevisionState;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  *
  * @author Robert Collins <robertc@robertcollins.net>
@@ -40,10 +44,20 @@ public class BazaarRevisionState extends SCMRevisionState {
 
     private final String revNo;
     private final String rev_id;
+    /**
+     * Revisions of the additional locations of a multi-location job, in order.
+     */
+    private final List<BazaarRevisionState> additionalStates;
 
     public BazaarRevisionState(String revNo, String revId) {
+        this(revNo, revId, null);
+    }
+
+    public BazaarRevisionState(String revNo, String revId, List<BazaarRevisionState> additionalStates) {
         this.revNo = revNo;
         this.rev_id = revId;
+        this.additionalStates = additionalStates == null || additionalStates.isEmpty()
+                ? null : new ArrayList<BazaarRevisionState>(additionalStates);
     }
 
     public String getRevNo() {
@@ -54,9 +68,39 @@ public class BazaarRevisionState extends SCMRevisionState {
         return this.rev_id;
     }
 
+    public List<BazaarRevisionState> getAdditionalStates() {
+        if (additionalStates == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(additionalStates);
+    }
+
+    /**
+     * Gets the revision of a location: 0 for the main source, then the
+     * additional locations.
+     *
+     * @return
+     *      null if there is no such location.
+     */
+    BazaarRevisionState getLocationState(int index) {
+        if (index == 0) {
+            return this;
+        }
+        List<BazaarRevisionState> states = getAdditionalStates();
+        return index <= states.size() ? states.get(index - 1) : null;
+    }
+
+    boolean sameAdditionalStates(BazaarRevisionState other) {
+        return getAdditionalStates().equals(other.getAdditionalStates());
+    }
+
     @Override
     public String toString() {
-        return "RevisionState revno:" + this.revNo + " revid:" + this.rev_id;
+        String result = "RevisionState revno:" + this.revNo + " revid:" + this.rev_id;
+        for (BazaarRevisionState state : getAdditionalStates()) {
+            result += " + revno:" + state.revNo + " revid:" + state.rev_id;
+        }
+        return result;
     }
 
     @Override
@@ -64,7 +108,7 @@ public class BazaarRevisionState extends SCMRevisionState {
         boolean result = false;
         if (other instanceof BazaarRevisionState) {
             BazaarRevisionState that = (BazaarRevisionState) other;
-            result = this.rev_id.equals(that.rev_id);
+            result = this.rev_id.equals(that.rev_id) && sameAdditionalStates(that);
         }
         return result;
     }
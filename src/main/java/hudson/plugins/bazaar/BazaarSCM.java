@@ -33,6 +33,7 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.Launcher.LocalLauncher;
 import hudson.Launcher.ProcStarter;
 import hudson.model.BuildListener;
@@ -40,6 +41,7 @@ import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Hudson;
+import hudson.model.Node;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.PollingResult;
@@ -48,28 +50,48 @@ import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
 import hudson.scm.SCM;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.LogTaskListener;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPOutputStream;
 import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -91,15 +113,81 @@ public class BazaarSCM extends SCM implements Serializable {
     private final BazaarRepositoryBrowser browser;
     private final boolean checkout;
     private final String workingDirectory;
+    private final boolean parallelCleanTree;
+    private final boolean export;
+    private final boolean prefetch;
+    /**
+     * Ant patterns of the paths, relative to the branch root, whose changes
+     * trigger a build. Empty for all of them.
+     */
+    private final String includes;
+    private final String excludes;
+    /**
+     * Branches checked out along with the source, each into its own directory.
+     */
+    private final List<BazaarLocation> additionalLocations;
+    /**
+     * New workspaces are copied from a {@link BazaarPristineTree} of the
+     * source on the node.
+     */
+    private final boolean pristineTree;
+    /**
+     * Branch that new workspaces are stacked on, so that they only hold the
+     * revisions it lacks. Empty for full branches.
+     */
+    private final String stackOn;
 
     @DataBoundConstructor
     public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
-                     String workingDirectory) {
+                     String workingDirectory, boolean parallelCleanTree, boolean export, boolean prefetch,
+                     String includes, String excludes, List<BazaarLocation> additionalLocations,
+                     boolean pristineTree, String stackOn) {
         this.source = source;
         this.cleantree = cleantree;
         this.browser = browser;
         this.checkout = checkout;
         this.workingDirectory = workingDirectory;
+        this.parallelCleanTree = parallelCleanTree;
+        this.export = export;
+        this.prefetch = prefetch;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.additionalLocations = additionalLocations == null || additionalLocations.isEmpty()
+                ? null : new ArrayList<BazaarLocation>(additionalLocations);
+        this.pristineTree = pristineTree;
+        this.stackOn = Util.fixEmptyAndTrim(stackOn);
+    }
+
+    public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
+                     String workingDirectory, boolean parallelCleanTree, boolean export, boolean prefetch,
+                     String includes, String excludes, List<BazaarLocation> additionalLocations,
+                     boolean pristineTree) {
+        this(source, cleantree, browser, checkout, workingDirectory, parallelCleanTree, export, prefetch,
+             includes, excludes, additionalLocations, pristineTree, null);
+    }
+
+    public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
+                     String workingDirectory, boolean parallelCleanTree, boolean export, boolean prefetch,
+                     String includes, String excludes, List<BazaarLocation> additionalLocations) {
+        this(source, cleantree, browser, checkout, workingDirectory, parallelCleanTree, export, prefetch,
+             includes, excludes, additionalLocations, false);
+    }
+
+    public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
+                     String workingDirectory, boolean parallelCleanTree, boolean export, boolean prefetch,
+                     String includes, String excludes) {
+        this(source, cleantree, browser, checkout, workingDirectory, parallelCleanTree, export, prefetch,
+             includes, excludes, null);
+    }
+
+    public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
+                     String workingDirectory, boolean parallelCleanTree, boolean export, boolean prefetch) {
+        this(source, cleantree, browser, checkout, workingDirectory, parallelCleanTree, export, prefetch, null, null);
+    }
+
+    public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout,
+                     String workingDirectory) {
+        this(source, cleantree, browser, checkout, workingDirectory, false, false, false);
     }
 
     public BazaarSCM(String source, boolean cleantree, BazaarRepositoryBrowser browser, boolean checkout) {
@@ -135,6 +223,119 @@ public class BazaarSCM extends SCM implements Serializable {
         return checkout;
     }
 
+    /**
+     * True if the clean tree is done by deleting unversioned files from Java,
+     * in parallel, rather than by bzr clean-tree.
+     * @return
+     */
+    public boolean isParallelCleanTree() {
+        return parallelCleanTree;
+    }
+
+    /**
+     * True if we only want the files of the revision, through bzr export,
+     * without any .bzr directory.
+     * @return
+     */
+    public boolean isExport() {
+        return export;
+    }
+
+    /**
+     * True if polling should start fetching new revisions into a cache on the
+     * node the job last ran on, for the build to pull from.
+     * @return
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Gets the patterns of the paths whose changes trigger a build.
+     * @return
+     */
+    public String getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Gets the patterns of the paths whose changes never trigger a build.
+     * @return
+     */
+    public String getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * Gets the branches checked out along with the source.
+     * @return
+     */
+    public List<BazaarLocation> getAdditionalLocations() {
+        if (additionalLocations == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(additionalLocations);
+    }
+
+    /**
+     * True if new workspaces are copied from a pristine tree kept on the node.
+     * @return
+     */
+    public boolean isPristineTree() {
+        return pristineTree;
+    }
+
+    /**
+     * Gets the branch new workspaces are stacked on, or null for full branches.
+     * @return
+     */
+    public String getStackOn() {
+        return stackOn;
+    }
+
+    /**
+     * Gets a single-location SCM checking out one of the additional locations
+     * with the same options.
+     */
+    private BazaarSCM forLocation(BazaarLocation location) {
+        return new BazaarSCM(location.getSource(), cleantree, browser, checkout, location.getWorkingDirectory(),
+                             parallelCleanTree, export, prefetch, null, null, null, pristineTree, null);
+    }
+
+    private static String[] splitPatterns(String patterns) {
+        patterns = Util.fixEmptyAndTrim(patterns);
+        if (patterns == null) {
+            return new String[0];
+        }
+        return patterns.split("[,\\s]+");
+    }
+
+    /**
+     * Checks whether any of the changed paths is included and not excluded.
+     */
+    private boolean matchesPaths(Set<String> paths) {
+        String[] includePatterns = splitPatterns(includes);
+        String[] excludePatterns = splitPatterns(excludes);
+        for (String path : paths) {
+            if (includePatterns.length > 0 && !matchesAny(includePatterns, path)) {
+                continue;
+            }
+            if (!matchesAny(excludePatterns, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(String[] patterns, String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Gets the working directory path relative to the workspace.
      * @return
@@ -228,23 +429,228 @@ public class BazaarSCM extends SCM implements Serializable {
         return rev;
     }
 
-    private void getLog(Launcher launcher, FilePath workspace, BazaarRevisionState oldRevisionState, BazaarRevisionState newRevisionState, File changeLog) throws InterruptedException {
+    private boolean getLog(Node node, Launcher launcher, TaskListener listener, FilePath workspace, BazaarRevisionState oldRevisionState, BazaarRevisionState newRevisionState, File changeLog) throws InterruptedException {
+        return getLog(node, launcher, listener, workspace, null, oldRevisionState, newRevisionState, changeLog, 0);
+    }
+
+    /**
+     * Writes the log between two revisions to the change log.
+     *
+     * @param node
+     *      node the log is read on, whose bzr may not support every option.
+     * @param location
+     *      branch to read the log from, or null for the one in the workspace.
+     * @param limit
+     *      bytes of log past which the rest is dropped, or 0 for no limit.
+     * @return
+     *      false if bzr log failed.
+     */
+    private boolean getLog(Node node, final Launcher launcher, TaskListener listener, final FilePath workspace, final String location, final BazaarRevisionState oldRevisionState, final BazaarRevisionState newRevisionState, File changeLog, long limit) throws InterruptedException {
+        final int depth = getMergeDepth(node, launcher);
         try {
-            int ret;
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            String version = "revid:" + oldRevisionState.getRevId() + "..revid:" + newRevisionState.getRevId();
-            if ((ret = launcher.launch().cmds(getDescriptor().getBzrExe(), "log", "-v", "-r", version, "--long", "--show-ids")
-                    .envs(EnvVars.masterEnvVars).stdout(baos).pwd(workspace).join()) != 0) {
-                logger.log(Level.WARNING, "bzr log -v -r returned {0}", ret);
-            } else {
-                FileOutputStream fos = new FileOutputStream(changeLog);
-                fos.write(baos.toByteArray());
-                fos.close();
+            // a truncated log is not worth sharing with builds that want it whole
+            if (getDescriptor().isSharedChangelogs() && limit == 0) {
+                // logs of different depths are different logs
+                String digest = BazaarChangeLogStore.store(depth > 0 ? source + " -n" + depth : source,
+                        oldRevisionState.getRevId(), newRevisionState.getRevId(),
+                        new BazaarChangeLogStore.Producer() {
+                            public boolean write(OutputStream out) throws IOException, InterruptedException {
+                                return readLog(launcher, workspace, location, oldRevisionState, newRevisionState, depth, out);
+                            }
+                        });
+                if (digest == null) {
+                    return false;
+                }
+                BazaarChangeLogStore.writeReference(changeLog, digest);
+                return true;
+            }
+
+            // stream the log to the build directory rather than holding it in memory
+            OutputStream out = new FileOutputStream(changeLog);
+            if (getDescriptor().isCompressChangelogs()) {
+                out = new GZIPOutputStream(out);
+            }
+            LimitedOutputStream limited = limit > 0 ? new LimitedOutputStream(out, limit) : null;
+            boolean logged;
+            try {
+                logged = readLog(launcher, workspace, location, oldRevisionState, newRevisionState, depth,
+                                 limited != null ? limited : out);
+            } finally {
+                // the limited stream only writes the last entry when closed
+                (limited != null ? limited : out).close();
             }
+            if (!logged) {
+                changeLog.delete();
+            } else if (limited != null && limited.isTruncated()) {
+                listener.getLogger().println("The change log since revision " + oldRevisionState.getRevNo()
+                        + " is too long, only the changes in its first " + limit + " bytes were kept: the list of changes is incomplete");
+            }
+            return logged;
         } catch (IOException e) {
             StringWriter w = new StringWriter();
             e.printStackTrace(new PrintWriter(w));
             logger.log(Level.WARNING, "Failed to poll repository: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the levels of merged revisions to log on a node, 0 for all of them,
+     * which is also what a bzr without <tt>log -n</tt>, or one that could not
+     * be probed, writes.
+     */
+    private int getMergeDepth(Node node, Launcher launcher) throws InterruptedException {
+        int depth = getDescriptor().getMergeDepth();
+        if (depth > 0) {
+            BazaarCapabilities capabilities = BazaarCapabilities.get(node, launcher);
+            if (capabilities == null || !capabilities.isLevels()) {
+                return 0;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Runs bzr log between two revisions.
+     *
+     * @param depth
+     *      levels of merged revisions to log, 0 for all of them.
+     * @return
+     *      false if bzr log failed.
+     */
+    private boolean readLog(Launcher launcher, FilePath workspace, String location, BazaarRevisionState oldRevisionState, BazaarRevisionState newRevisionState, int depth, OutputStream out) throws IOException, InterruptedException {
+        int ret;
+        String version = "revid:" + oldRevisionState.getRevId() + "..revid:" + newRevisionState.getRevId();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(getDescriptor().getBzrExe(), "log", "-v", "-r", version, "--long", "--show-ids");
+        if (depth > 0) {
+            args.add("-n", String.valueOf(depth));
+        }
+        if (location != null) {
+            args.add(location);
+        }
+        if ((ret = launcher.launch().cmds(args)
+                .envs(EnvVars.masterEnvVars).stdout(out).pwd(workspace).join()) != 0) {
+            logger.log(Level.WARNING, "bzr log -v -r returned {0}", ret);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the entries of a bzr log that fit in a number of bytes and drops
+     * the rest, rather than failing, so that the process writing to it still
+     * runs to completion.
+     *
+     * <p>
+     * An entry is only passed on once the separator line of the next one, or
+     * {@link #close()}, shows that it is whole, so the log is always cut
+     * between two entries and never in the middle of a line or character.
+     * </p>
+     */
+    static final class LimitedOutputStream extends FilterOutputStream {
+        private static final byte[] SEPARATOR = BazaarChangeLogReader.SEPARATOR.getBytes();
+
+        private long remaining;
+        private boolean truncated;
+        /**
+         * What was written since the start of the last entry seen, null once truncated.
+         */
+        private byte[] pending = new byte[8192];
+        private int length;
+        private int lineStart;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pending == null) {
+                return;
+            }
+            if (length == pending.length) {
+                if (length >= remaining) {
+                    // this entry won't fit whatever comes next
+                    truncate();
+                    return;
+                }
+                byte[] bigger = new byte[(int) Math.min(remaining + 1, 2L * length)];
+                System.arraycopy(pending, 0, bigger, 0, length);
+                pending = bigger;
+            }
+            pending[length++] = (byte) b;
+            if (b == '\n') {
+                if (isSeparator(lineStart, length)) {
+                    pass(lineStart);
+                }
+                lineStart = length;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len && pending != null; i++) {
+                write(b[off + i]);
+            }
+        }
+
+        /**
+         * Passes on the last entry, which is whole, and closes the stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (pending != null) {
+                pass(length);
+            }
+            super.close();
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Passes on the pending bytes up to the start of an entry, if they fit.
+         */
+        private void pass(int end) throws IOException {
+            if (end > remaining) {
+                truncate();
+                return;
+            }
+            out.write(pending, 0, end);
+            remaining -= end;
+            length -= end;
+            lineStart -= end;
+            System.arraycopy(pending, end, pending, 0, length);
+        }
+
+        private void truncate() {
+            truncated = true;
+            pending = null;
+        }
+
+        /**
+         * Tells whether a line, indented or not, is the separator bzr log writes
+         * before each entry.
+         */
+        private boolean isSeparator(int start, int end) {
+            while (start < end && pending[start] == ' ') {
+                start++;
+            }
+            while (end > start && (pending[end - 1] == '\n' || pending[end - 1] == '\r')) {
+                end--;
+            }
+            if (end - start != SEPARATOR.length) {
+                return false;
+            }
+            for (int i = 0; i < SEPARATOR.length; i++) {
+                if (pending[start + i] != SEPARATOR[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -254,13 +660,31 @@ public class BazaarSCM extends SCM implements Serializable {
             TaskListener listener, SCMRevisionState baseline) throws
             IOException, InterruptedException {
         PrintStream output = listener.getLogger();
-        output.printf("Getting current remote revision...");
-        final BazaarRevisionState remote = getRevisionState(launcher, listener, source);
+        BazaarRevisionState remote;
+        // the last known state of a source lacks the additional locations, only
+        // the state saved for a multi-location job has them all
+        BazaarRevisionState lastKnown = getAdditionalLocations().isEmpty()
+                ? BazaarRemoteStates.getLastKnown(source)
+                : BazaarRemoteStates.getJobState(project.getFullName());
+        if (BazaarRemoteStates.isDeferred(source) && (lastKnown != null || getAdditionalLocations().isEmpty())) {
+            // right after a restart, don't have every job ask the server at once
+            output.println("Jenkins just started, using the last known revision of " + source);
+            remote = lastKnown;
+        } else {
+            remote = getRemoteRevisionState(launcher, listener, source);
+            if (remote != null && !getAdditionalLocations().isEmpty()) {
+                remote = addRemoteLocationStates(launcher, listener, remote);
+            }
+        }
         output.println(remote);
-        final Change change;
+        Change change;
+        if (!(baseline instanceof BazaarRevisionState) && BazaarRemoteStates.getJobState(project.getFullName()) != null) {
+            baseline = BazaarRemoteStates.getJobState(project.getFullName());
+            output.println("Using the baseline saved by the last poll.");
+        }
         output.printf("Baseline is %s.\n", baseline);
         if (remote == null) {
-            output.printf("Failed to get current remote revision, assuming no change.\n");
+            output.printf("No current remote revision known, assuming no change.\n");
             change = Change.NONE;
         } else if ((baseline == SCMRevisionState.NONE)
                 // If we can't qualify the base revision (i.e. previous run) always default to change.
@@ -273,9 +697,113 @@ public class BazaarSCM extends SCM implements Serializable {
         } else{
             change = Change.NONE;
         }
+        if (change == Change.SIGNIFICANT && baseline instanceof BazaarRevisionState
+                && remote.sameAdditionalStates((BazaarRevisionState) baseline)
+                && (Util.fixEmptyAndTrim(includes) != null || Util.fixEmptyAndTrim(excludes) != null)) {
+            if (launcher == null) {
+                launcher = new LocalLauncher(listener);
+            }
+            Set<String> paths = BazaarChangedPaths.get(launcher, listener, source,
+                    ((BazaarRevisionState) baseline).getRevId(), remote.getRevId());
+            if (paths == null) {
+                output.println("Failed to get the changed paths, assuming they matter.");
+            } else if (!matchesPaths(paths)) {
+                output.println("None of the " + paths.size() + " changed paths are included, ignoring the change.");
+                change = Change.INSIGNIFICANT;
+            }
+        }
+        if (change == Change.SIGNIFICANT && isPrefetch()) {
+            Node node = project.getLastBuiltOn();
+            if (node != null) {
+                output.println("Prefetching " + remote + " into the cache of " + node.getDisplayName());
+                BazaarCache.updateAsync(node, source);
+            }
+        }
+        if (remote != null) {
+            BazaarRemoteStates.recordJobState(project.getFullName(), remote);
+        }
         return new PollingResult(baseline,remote,change);
     }
 
+    /**
+     * Gets the current revision of a source, or the last one known when
+     * polling in the background.
+     */
+    private BazaarRevisionState getRemoteRevisionState(Launcher launcher, TaskListener listener, final String source)
+            throws InterruptedException {
+        PrintStream output = listener.getLogger();
+        if (getDescriptor().getMaxConcurrentPolls() > 0) {
+            output.println("Getting last known remote revision of " + source);
+            return BazaarRemoteStates.poll(source, new Callable<BazaarRevisionState>() {
+                public BazaarRevisionState call() throws InterruptedException {
+                    return getRevisionState(null, new LogTaskListener(logger, Level.FINE), source);
+                }
+            });
+        }
+        output.println("Getting current remote revision of " + source);
+        BazaarRevisionState state = getRevisionState(launcher, listener, source);
+        if (state != null) {
+            BazaarRemoteStates.record(source, state);
+        }
+        return state;
+    }
+
+    /**
+     * Adds the current revisions of the additional locations, all fetched at
+     * the same time, to the revision of the source.
+     *
+     * @return
+     *      null if any of them could not be fetched.
+     */
+    private BazaarRevisionState addRemoteLocationStates(final Launcher launcher, final TaskListener listener,
+                                                        BazaarRevisionState remote) throws IOException, InterruptedException {
+        List<Callable<BazaarRevisionState>> tasks = new ArrayList<Callable<BazaarRevisionState>>();
+        for (final BazaarLocation location : getAdditionalLocations()) {
+            tasks.add(new Callable<BazaarRevisionState>() {
+                public BazaarRevisionState call() throws InterruptedException {
+                    return getRemoteRevisionState(launcher, listener, location.getSource());
+                }
+            });
+        }
+        List<BazaarRevisionState> states = invokeAll(tasks);
+        if (states.contains(null)) {
+            return null;
+        }
+        return new BazaarRevisionState(remote.getRevNo(), remote.getRevId(), states);
+    }
+
+    /**
+     * Runs tasks on a pool of at most {@link #MAX_PARALLEL_LOCATIONS} threads
+     * and waits for all of them.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), MAX_PARALLEL_LOCATIONS)),
+                                                            new DaemonThreadFactory());
+        try {
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw (IOException) new IOException(cause.getMessage()).initCause(cause);
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     @Override
     public boolean requiresWorkspaceForPolling() {
         return false;
@@ -285,36 +813,274 @@ public class BazaarSCM extends SCM implements Serializable {
     public SCMRevisionState calcRevisionsFromBuild(AbstractBuild<?, ?> build,
             Launcher launcher, TaskListener listener) throws IOException,
             InterruptedException {
+        if (isExport()) {
+            // exported trees have no .bzr to ask, checkout recorded the revision
+            return build.getAction(BazaarRevisionState.class);
+        }
         PrintStream output = listener.getLogger();
         output.println("Getting local revision...");
         BazaarRevisionState local = getLocalRevisionState(launcher, listener, checkoutDir(build.getWorkspace()).getRemote());
+        if (local != null && !getAdditionalLocations().isEmpty()) {
+            List<BazaarRevisionState> states = new ArrayList<BazaarRevisionState>();
+            for (BazaarLocation location : getAdditionalLocations()) {
+                BazaarRevisionState state = getLocalRevisionState(launcher, listener,
+                        forLocation(location).checkoutDir(build.getWorkspace()).getRemote());
+                if (state == null) {
+                    return null;
+                }
+                states.add(state);
+            }
+            local = new BazaarRevisionState(local.getRevNo(), local.getRevId(), states);
+        }
         output.println(local);
         return local;
     }
 
     @Override
     public boolean checkout(AbstractBuild<?,?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile) throws IOException, InterruptedException {
+        boolean result;
+        if (!getAdditionalLocations().isEmpty()) {
+            result = checkoutLocations(build, launcher, workspace, listener, changelogFile);
+        } else if (isExport()) {
+            BazaarRevisionState exported = export(build, launcher, checkoutDir(workspace), listener, changelogFile,
+                                                  getPreviousRevisionState(build));
+            if (exported != null) {
+                build.addAction(exported);
+            }
+            result = exported != null;
+        } else {
+            result = checkoutTree(build, launcher, workspace, listener, changelogFile, getPreviousRevisionState(build));
+        }
+
+        build.addAction(new BazaarTagAction(build));
+        build.addAction(new BazaarChangesAction(build));
+
+        return result;
+    }
+
+    /**
+     * Checks the source and every additional location out at the same time,
+     * then puts their logs together into the change log.
+     */
+    private boolean checkoutLocations(final AbstractBuild<?,?> build, final Launcher launcher, final FilePath workspace,
+                                      final BuildListener listener, File changelogFile) throws IOException, InterruptedException {
+        List<BazaarSCM> scms = new ArrayList<BazaarSCM>();
+        scms.add(new BazaarSCM(source, cleantree, browser, checkout, workingDirectory, parallelCleanTree, export, prefetch,
+                               null, null, null, pristineTree, stackOn));
+        for (BazaarLocation location : getAdditionalLocations()) {
+            scms.add(forLocation(location));
+        }
+
+        for (BazaarSCM scm : scms) {
+            if (scm.checkoutDir(workspace).equals(workspace)) {
+                // checking out into the workspace root would wipe the other locations
+                listener.error("Each branch of a multi-location job needs a subdirectory of its own, " + scm.getSource() + " has none");
+                return false;
+            }
+        }
+
+        BazaarRevisionState previous = getPreviousRevisionState(build);
+        final BazaarRevisionState[] exported = new BazaarRevisionState[scms.size()];
+        final File[] changelogs = new File[scms.size()];
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            for (int i = 0; i < scms.size(); i++) {
+                final int index = i;
+                final BazaarSCM scm = scms.get(i);
+                final BazaarRevisionState oldRevisionState = previous == null ? null : previous.getLocationState(i);
+                changelogs[i] = File.createTempFile("changelog", ".location", build.getRootDir());
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() throws IOException, InterruptedException {
+                        if (scm.isExport()) {
+                            exported[index] = scm.export(build, launcher, scm.checkoutDir(workspace), listener,
+                                                         changelogs[index], oldRevisionState);
+                            return exported[index] != null;
+                        }
+                        return scm.checkoutTree(build, launcher, workspace, listener, changelogs[index], oldRevisionState);
+                    }
+                });
+            }
+
+            if (invokeAll(tasks).contains(Boolean.FALSE)) {
+                return false;
+            }
+            if (isExport()) {
+                build.addAction(new BazaarRevisionState(exported[0].getRevNo(), exported[0].getRevId(),
+                        Arrays.asList(exported).subList(1, exported.length)));
+            }
+            mergeChangeLogs(scms, changelogs, changelogFile);
+            return true;
+        } finally {
+            for (File changelog : changelogs) {
+                if (changelog != null) {
+                    changelog.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the logs of all the locations to the change log, those of the
+     * additional locations each in a section of its own.
+     */
+    private void mergeChangeLogs(List<BazaarSCM> scms, File[] changelogs, File changelogFile) throws IOException {
+        OutputStream out = new FileOutputStream(changelogFile);
+        if (getDescriptor().isCompressChangelogs()) {
+            out = new GZIPOutputStream(out);
+        }
+        Writer w = new OutputStreamWriter(out, BazaarChangeLogStore.ENCODING);
+        try {
+            List<String> sources = new ArrayList<String>();
+            for (BazaarSCM scm : scms) {
+                sources.add(scm.getSource());
+            }
+            mergeChangeLogs(sources, changelogs, w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Writes the logs of the given sources one after the other, starting each
+     * but the first with a {@link BazaarChangeLogReader#LOCATION} line. A log
+     * cut short may end in the middle of a line, which is then ended so that
+     * the next marker is seen.
+     */
+    static void mergeChangeLogs(List<String> sources, File[] changelogs, Writer w) throws IOException {
+        char[] buf = new char[8192];
+        char last = '\n';
+        for (int i = 0; i < changelogs.length; i++) {
+            if (i > 0) {
+                if (last != '\n') {
+                    w.write('\n');
+                }
+                w.write(BazaarChangeLogReader.LOCATION + sources.get(i) + "\n");
+                last = '\n';
+            }
+            if (!changelogs[i].isFile() || changelogs[i].length() == 0) {
+                continue;
+            }
+            Reader in = BazaarChangeLogStore.open(changelogs[i]);
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    if (n > 0) {
+                        w.write(buf, 0, n);
+                        last = buf[n - 1];
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Checks the source out into its directory of the workspace, updating
+     * the branch or checkout already there if any.
+     *
+     * @param previousState
+     *      revision of the source at the previous build, which a new branch
+     *      or checkout reads its change log from. May be null.
+     */
+    private boolean checkoutTree(AbstractBuild<?,?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile, BazaarRevisionState previousState) throws IOException, InterruptedException {
         FilePath checkoutDir = checkoutDir(workspace);
-        boolean canUpdate = checkoutDir.act(new FileCallable<Boolean>() {
+        BazaarLocks.Lease lease = lock(build, checkoutDir, listener);
+        if (lease == null) {
+            return false;
+        }
+        try {
+            boolean canUpdate = checkoutDir.act(new FileCallable<Boolean>() {
 
-            private static final long serialVersionUID = 1L;
+                private static final long serialVersionUID = 1L;
 
-            public Boolean invoke(File ws, VirtualChannel channel) throws IOException {
-                File file = new File(ws, ".bzr");
-                return file.exists();
+                public Boolean invoke(File ws, VirtualChannel channel) throws IOException {
+                    File file = new File(ws, ".bzr");
+                    return file.exists();
+                }
+            });
+
+            if (canUpdate) {
+                long waited = BazaarLocks.awaitUnlocked(checkoutDir, listener);
+                if (waited < 0) {
+                    listener.error("Gave up waiting for the bzr lock of " + checkoutDir + " to be released");
+                    return false;
+                }
+                BazaarLockAction.record(build, waited);
             }
-        });
 
-        boolean result = true;
-        if (canUpdate) {
-            result = update(cleantree, build, launcher, checkoutDir, listener, changelogFile);
-        } else {
-            result = clone(build, launcher, checkoutDir, listener, changelogFile);
+            boolean result = true;
+            if (canUpdate) {
+                result = update(cleantree, build, launcher, checkoutDir, listener, changelogFile);
+            } else {
+                result = clone(build, launcher, checkoutDir, listener, changelogFile, previousState);
+            }
+
+            if (result) {
+                recordManifest(checkoutDir, listener);
+            }
+
+            return result;
+        } finally {
+            lease.release();
         }
+    }
 
-        build.addAction(new BazaarTagAction(build));
+    /**
+     * Locks a branch of the node of a build for the rest of its checkout,
+     * adding the time waited to the build.
+     *
+     * @return
+     *      null if it stayed locked for too long.
+     */
+    private static BazaarLocks.Lease lock(AbstractBuild<?, ?> build, FilePath dir, BuildListener listener) throws IOException, InterruptedException {
+        BazaarLocks.Lease lease = BazaarLocks.acquire(build.getBuiltOn(), dir, listener);
+        if (lease == null) {
+            listener.error("Gave up waiting for " + dir + " after " + BazaarLocks.TIMEOUT + " minutes");
+            return null;
+        }
+        BazaarLockAction.record(build, lease.getWaited());
+        return lease;
+    }
 
-        return result;
+    /**
+     * Locks the cache of the node of a build for reading, unless it stays busy
+     * for more than {@link #CACHE_WAIT} milliseconds. Using the cache is only
+     * an optimization, better go without it than wait.
+     *
+     * @return
+     *      null if the cache is busy.
+     */
+    private static BazaarLocks.Lease lockCache(AbstractBuild<?, ?> build, FilePath cache, BuildListener listener) throws InterruptedException {
+        try {
+            BazaarLocks.Lease lease = BazaarLocks.acquire(build.getBuiltOn(), cache, listener, CACHE_WAIT);
+            if (lease == null) {
+                listener.getLogger().println("The cache of this node is busy, not using it");
+                return null;
+            }
+            BazaarLockAction.record(build, lease.getWaited());
+            return lease;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to lock " + cache, e);
+            return null;
+        }
+    }
+
+    /**
+     * Tells, after saying so, whether another bzr process holds a lock on a
+     * branch. A command may then have failed because of it, and the branch
+     * is not to be thrown away.
+     */
+    private static boolean isLockedByOther(FilePath workspace, BuildListener listener) throws InterruptedException {
+        try {
+            if (BazaarLocks.isLocked(workspace)) {
+                listener.getLogger().println("Another bzr process holds a lock on " + workspace + ", leaving it alone");
+                return true;
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to look for bzr locks in " + workspace, e);
+        }
+        return false;
     }
 
     /**
@@ -325,11 +1091,16 @@ public class BazaarSCM extends SCM implements Serializable {
 
         boolean hasProblemOccured = false;
 
-        if (cleantree) {
+        boolean pristine = isPristine(workspace, listener);
+        if (pristine) {
+            listener.getLogger().println("Working tree unchanged since the last checkout, skipping revert and clean-tree");
+        }
+
+        if (cleantree && !pristine) {
             cleantree(build, launcher, workspace, listener);
         }
 
-	hasProblemOccured = ! pull(build, launcher, workspace, listener);
+	hasProblemOccured = ! pull(build, launcher, workspace, listener, !pristine);
 
         if (hasProblemOccured) {
             return false;
@@ -337,10 +1108,83 @@ public class BazaarSCM extends SCM implements Serializable {
 
         BazaarRevisionState newRevisionState = getRevisionState(launcher, listener, workspace.getRemote());
         if (oldRevisionState != null && newRevisionState != null) {
-            getLog(launcher, workspace, oldRevisionState, newRevisionState, changelogFile);
+            if (!isCheckout() || !getLogFromCache(build, launcher, workspace, listener, oldRevisionState, newRevisionState, changelogFile, 0)) {
+                getLog(build.getBuiltOn(), launcher, listener, workspace, oldRevisionState, newRevisionState, changelogFile);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the log of a lightweight checkout from the {@link BazaarCache} of the
+     * node, after pulling the new revisions into it. The checkout has no history
+     * of its own, so bzr log in the workspace would read every revision of the
+     * range, with its inventory, from the source.
+     *
+     * @param limit
+     *      bytes of log past which the rest is dropped, or 0 for no limit.
+     * @return
+     *      false if the node has no cache of the source yet, or if the log could
+     *      not be read from it.
+     */
+    private boolean getLogFromCache(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener,
+                                    BazaarRevisionState oldRevisionState, BazaarRevisionState newRevisionState, File changelogFile,
+                                    long limit) throws InterruptedException {
+        Node node = build.getBuiltOn();
+        FilePath cache = BazaarCache.getExistingCacheDir(node, source);
+        if (cache == null) {
+            if (node != null && BazaarCacheWarmer.isCacheNode(node)) {
+                // have it ready for the next build
+                BazaarCache.updateAsync(node, source);
+            }
+            return false;
+        }
+        BazaarLocks.Lease lease = lockCache(build, cache, listener);
+        if (lease == null) {
+            return false;
+        }
+        try {
+            listener.getLogger().println("Reading the change log from the cache " + cache);
+            return BazaarCache.update(node, launcher, cache, source, listener)
+                    && getLog(node, launcher, listener, workspace, cache.getRemote(), oldRevisionState, newRevisionState, changelogFile, limit);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * True if nothing in the working tree changed since it was last checked out,
+     * according to the manifest recorded by {@link #recordManifest}.
+     * The time taken is printed, to be weighed against that of clean-tree.
+     */
+    private boolean isPristine(FilePath workspace, BuildListener listener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            boolean pristine = workspace.act(new BazaarTreeManifest.Check());
+            listener.getLogger().println("Checked the working tree against its manifest in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return pristine;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to check the working tree against its manifest", e);
+            return false;
         }
+    }
 
-        return true;
+    private void recordManifest(FilePath workspace, BuildListener listener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            int entries = workspace.act(new BazaarTreeManifest.Record());
+            if (entries < 0) {
+                listener.getLogger().println("The working tree has more than " + BazaarTreeManifest.MAX_ENTRIES
+                        + " entries, not recording its manifest");
+            } else {
+                listener.getLogger().println("Recorded the manifest of " + entries + " working tree entries in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to record the working tree manifest"));
+        }
     }
 
     /* Run a 'bzr revert' to ensure we have a clean checkout
@@ -355,6 +1199,9 @@ public class BazaarSCM extends SCM implements Serializable {
         try {
             if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
                 listener.error("Failed to run bzr revert");
+		if (isLockedByOther(workspace, listener)) {
+		    return false;
+		}
 		try {
 		    listener.getLogger().println("Since BZR itself isn't crash safe, we'll clean the workspace so that on the next try we'll do a clean pull...");
 		    workspace.deleteRecursive();
@@ -381,6 +1228,10 @@ public class BazaarSCM extends SCM implements Serializable {
        without having to pull the repository again.
      */
     private boolean cleantree(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        if (isParallelCleanTree()) {
+            return parallelCleantree(build, launcher, workspace, listener);
+        }
+
         ArgumentListBuilder args = new ArgumentListBuilder();
 
 	args.add(getDescriptor().getBzrExe(), "clean-tree", "--quiet",
@@ -399,11 +1250,42 @@ public class BazaarSCM extends SCM implements Serializable {
         return true;
     }
 
+    /* bzr clean-tree walks and deletes in a single thread, which takes ages
+       on trees full of build products. Ask bzr for the unversioned paths
+       only (unversioned directories come out whole) and delete them on the
+       node with several threads.
+     */
+    private boolean parallelCleantree(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(getDescriptor().getBzrExe(), "ls", "--recursive", "--unknown", "--ignored", "--null");
+
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(stdout).pwd(workspace).join() != 0) {
+                listener.error("Failed to list unversioned files");
+                return false;
+            }
+
+            List<String> paths = new ArrayList<String>();
+            for (String path : stdout.toString("UTF-8").split("\u0000")) {
+                if (path.length() > 0) {
+                    paths.add(path);
+                }
+            }
+            BazaarCleanTree.Stats stats = workspace.act(new BazaarCleanTree(paths));
+            listener.getLogger().println("Clean tree: " + paths.size() + " unversioned paths, " + stats);
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to clean the tree"));
+            return false;
+        }
+
+        return true;
+    }
 
     /**
      * Pull the remote branch into workspace.
      */
-    private boolean pull(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+    private boolean pull(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, boolean revert) throws InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder();
         String verb = null;
 	boolean result = true;
@@ -415,6 +1297,9 @@ public class BazaarSCM extends SCM implements Serializable {
 		    .envs(build.getEnvironment(listener))
 		    .stdout(listener.getLogger()).pwd(workspace).join() != 0) {
 		    listener.error("Failed to bzr update");
+		    if (isLockedByOther(workspace, listener)) {
+			return false;
+		    }
 		    try {
 			listener.getLogger().println("Since BZR itself isn't crash safe, we'll clean the workspace so that on the next try we'll do a clean pull...");
 			workspace.deleteRecursive();
@@ -433,6 +1318,7 @@ public class BazaarSCM extends SCM implements Serializable {
             args.add(getDescriptor().getBzrExe(), verb,
                      source);
         } else {
+            pullFromCache(build, launcher, workspace, listener);
             verb = "pull";
             args.add(getDescriptor().getBzrExe(),
                      verb, "--overwrite",
@@ -441,6 +1327,9 @@ public class BazaarSCM extends SCM implements Serializable {
         try {
             if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
                 listener.error("Failed to " + verb);
+		if (isLockedByOther(workspace, listener)) {
+		    return false;
+		}
 		try {
 		    listener.getLogger().println("Since BZR itself isn't crash safe, we'll clean the workspace so that on the next try we'll do a clean pull...");
 		    workspace.deleteRecursive();
@@ -450,7 +1339,9 @@ public class BazaarSCM extends SCM implements Serializable {
 		}
                 return false;
             }
-	    result= revert(build, launcher, workspace, listener);
+	    if (revert) {
+	        result = revert(build, launcher, workspace, listener);
+	    }
         } catch (IOException e) {
             listener.error("Failed to " + verb);
             return false;
@@ -460,14 +1351,357 @@ public class BazaarSCM extends SCM implements Serializable {
     }
 
     /**
-     * Start from scratch and clone the whole repository.
+     * Pull what was prefetched or warmed up into the cache of this node, so
+     * that the pull from the source has little left to fetch.
+     *
+     * <p>
+     * The cache is refreshed in the background and may be older than the
+     * workspace, so this is a plain pull: bzr does nothing when the cache is
+     * behind and refuses when it has diverged, where <tt>--overwrite</tt>
+     * would move the branch and tree back to the older tip of the cache.
+     * </p>
+     */
+    private void pullFromCache(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        FilePath cache = BazaarCache.getExistingCacheDir(build.getBuiltOn(), source);
+        if (cache == null) {
+            return;
+        }
+        BazaarLocks.Lease lease = lockCache(build, cache, listener);
+        if (lease == null) {
+            return;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(getDescriptor().getBzrExe(), "pull", cache.getRemote());
+        try {
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
+                listener.getLogger().println("The cache has diverged or could not be read, pulling everything from " + source);
+            }
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to pull from the cache, pulling everything from " + source);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Start from scratch and clone the whole repository, reading the change
+     * log since the revision of the previous build, if any, from the new
+     * branch or checkout.
+     */
+    private boolean clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile, BazaarRevisionState previousState) throws InterruptedException {
+        if (!copyFromPristineTree(build, launcher, workspace, listener)
+                && !branchStacked(build, launcher, workspace, listener)
+                && !branchFromLocalCopy(build, launcher, workspace, listener)
+                && !branch(build, launcher, workspace, listener)) {
+            return false;
+        }
+
+        BazaarRevisionState newRevisionState = previousState == null ? null
+                : getRevisionState(launcher, listener, workspace.getRemote());
+        if (newRevisionState == null || newRevisionState.getRevId().equals(previousState.getRevId())) {
+            return createEmptyChangeLog(changelogFile, listener, "changelog");
+        }
+
+        listener.getLogger().println("Reading the change log since revision " + previousState.getRevNo() + " of the previous build");
+        if ((!isCheckout() || !getLogFromCache(build, launcher, workspace, listener, previousState, newRevisionState, changelogFile, CLONE_LOG_LIMIT))
+                && !getLog(build.getBuiltOn(), launcher, listener, workspace, null, previousState, newRevisionState, changelogFile, CLONE_LOG_LIMIT)) {
+            listener.getLogger().println("Failed to read the change log, it may have been rewritten since");
+            return createEmptyChangeLog(changelogFile, listener, "changelog");
+        }
+        return true;
+    }
+
+    /**
+     * Replace the workspace with the files of the current remote revision,
+     * and compute the change log from the revision of the previous build.
+     */
+    private BazaarRevisionState export(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile, BazaarRevisionState oldRevisionState) throws InterruptedException {
+        BazaarRevisionState newRevisionState = getRevisionState(launcher, listener, source);
+        if (newRevisionState == null) {
+            listener.error("Failed to get the current revision of " + source);
+            return null;
+        }
+
+        BazaarLocks.Lease lease;
+        try {
+            lease = lock(build, workspace, listener);
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to lock the workspace"));
+            return null;
+        }
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return exportRevision(build, launcher, workspace, listener, changelogFile, oldRevisionState, newRevisionState);
+        } finally {
+            lease.release();
+        }
+    }
+
+    private BazaarRevisionState exportRevision(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile, BazaarRevisionState oldRevisionState, BazaarRevisionState newRevisionState) throws InterruptedException {
+        try {
+            listener.getLogger().println("Cleaning workspace...");
+            workspace.deleteRecursive();
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to clean the workspace"));
+            return null;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(getDescriptor().getBzrExe(), "export");
+        args.add("-r", "revid:" + newRevisionState.getRevId());
+        args.add(workspace.getRemote(), source);
+
+        try {
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
+                listener.error("Failed to export " + source);
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to export " + source));
+            return null;
+        }
+
+        if (oldRevisionState == null) {
+            return createEmptyChangeLog(changelogFile, listener, "changelog") ? newRevisionState : null;
+        }
+        getLog(build.getBuiltOn(), launcher, listener, workspace, source, oldRevisionState, newRevisionState, changelogFile, 0);
+        return newRevisionState;
+    }
+
+    /**
+     * Gets the revision the last build that recorded one was at, with those of
+     * the additional locations.
+     */
+    private static BazaarRevisionState getPreviousRevisionState(AbstractBuild<?, ?> build) {
+        for (AbstractBuild<?, ?> previous = build.getPreviousBuild(); previous != null; previous = previous.getPreviousBuild()) {
+            BazaarRevisionState state = previous.getAction(BazaarRevisionState.class);
+            if (state != null) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the workspace from the pristine tree of the source on this node,
+     * then pull whatever the source got since.
+     *
+     * @return
+     *      false if the option is off, or the copy failed.
+     */
+    private boolean copyFromPristineTree(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        if (!isPristineTree() || isCheckout()) {
+            return false;
+        }
+
+        try {
+            if (!BazaarPristineTree.materialize(build.getBuiltOn(), launcher, source, workspace, listener)) {
+                listener.getLogger().println("Failed to copy the pristine tree, branching instead");
+                return false;
+            }
+
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(getDescriptor().getBzrExe(), "pull", "--overwrite", "--remember", source);
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
+                listener.error("Failed to pull from " + source + ", branching from it instead");
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to copy the pristine tree of " + source));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Branch stacked on {@link #getStackOn()}, then pull the revisions of the
+     * source it lacks, so that the workspace only holds those.
+     *
+     * @return
+     *      false if stacking is off, or the branch could not be stacked, for
+     *      instance because its format doesn't support it.
+     */
+    private boolean branchStacked(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        if (stackOn == null || isCheckout()) {
+            return false;
+        }
+        BazaarCapabilities capabilities = BazaarCapabilities.get(build.getBuiltOn(), launcher);
+        if (capabilities != null && !capabilities.isStacked()) {
+            listener.getLogger().println("The bzr of this node can't stack branches, making a full branch");
+            return false;
+        }
+
+        try {
+            workspace.deleteRecursive();
+
+            listener.getLogger().println("Branching stacked on " + stackOn);
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(getDescriptor().getBzrExe(), "branch", "--stacked", stackOn, workspace.getRemote());
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
+                listener.error("Failed to branch stacked on " + stackOn + ", making a full branch instead");
+                return false;
+            }
+
+            args = new ArgumentListBuilder();
+            args.add(getDescriptor().getBzrExe(), "pull", "--overwrite", "--remember", source);
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
+                listener.error("Failed to pull from " + source + ", making a full branch instead");
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to branch stacked on " + stackOn));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Branch from a copy of the source already on this node, and only pull the
+     * missing revisions from the source. The copy is either the
+     * {@link BazaarCache} of the node or, as concurrent builds get workspaces
+     * like <tt>job@2</tt> next to <tt>job</tt>, another workspace of the job
+     * holding an unlocked branch of the same source.
+     *
+     * @return
+     *      false if there is no usable copy, or branching from it failed.
      */
-    private boolean clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile) throws InterruptedException {
-        if (!branch(build, launcher, workspace, listener)) {
+    private boolean branchFromLocalCopy(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
+        if (isCheckout() || build.getWorkspace() == null) {
+            return false;
+        }
+
+        String local;
+        FilePath cache = BazaarCache.getExistingCacheDir(build.getBuiltOn(), source);
+        BazaarLocks.Lease cacheLease = cache == null ? null : lockCache(build, cache, listener);
+        if (cacheLease != null) {
+            local = cache.getRemote();
+            listener.getLogger().println("Branching from the cache of this node " + local);
+        } else {
+            try {
+                local = build.getWorkspace().act(new SiblingFinder(workingDirectory, source));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to look for sibling workspaces", e);
+                return false;
+            }
+            if (local == null) {
+                return false;
+            }
+            listener.getLogger().println("Branching from sibling workspace " + local);
+        }
+
+        try {
+            workspace.deleteRecursive();
+
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(getDescriptor().getBzrExe(), "branch", local, workspace.getRemote());
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
+                listener.error("Failed to branch from " + local + ", branching from " + source + " instead");
+                return false;
+            }
+
+            args = new ArgumentListBuilder();
+            args.add(getDescriptor().getBzrExe(), "pull", "--overwrite", "--remember", source);
+            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
+                listener.error("Failed to pull from " + source + ", branching from it instead");
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to branch from " + local));
             return false;
+        } finally {
+            if (cacheLease != null) {
+                cacheLease.release();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Looks for another workspace of the same job holding an unlocked branch
+     * of the same source.
+     */
+    private static final class SiblingFinder implements FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private static final Pattern CONCURRENT_WORKSPACE = Pattern.compile("(.*)@[0-9]+");
+
+        private final String workingDirectory;
+        private final String source;
+
+        SiblingFinder(String workingDirectory, String source) {
+            this.workingDirectory = workingDirectory;
+            this.source = source;
+        }
+
+        public String invoke(File ws, VirtualChannel channel) throws IOException {
+            File parent = ws.getParentFile();
+            if (parent == null) {
+                return null;
+            }
+            String name = ws.getName();
+            Matcher m = CONCURRENT_WORKSPACE.matcher(name);
+            String base = m.matches() ? m.group(1) : name;
+
+            File[] candidates = parent.listFiles();
+            if (candidates == null) {
+                return null;
+            }
+            for (File candidate : candidates) {
+                String candidateName = candidate.getName();
+                if (candidateName.equals(name)
+                        || !(candidateName.equals(base) || CONCURRENT_WORKSPACE.matcher(candidateName).matches()
+                             && candidateName.startsWith(base + "@"))) {
+                    continue;
+                }
+                File branch = candidate;
+                if (workingDirectory != null && workingDirectory.length() > 0 && !workingDirectory.equals(".")) {
+                    branch = new File(candidate, workingDirectory);
+                }
+                if (isUsable(branch)) {
+                    return branch.getAbsolutePath();
+                }
+            }
+            return null;
+        }
+
+        private boolean isUsable(File branch) throws IOException {
+            File bzr = new File(branch, ".bzr");
+            if (!new File(bzr, "branch/branch.conf").isFile()
+                    || new File(bzr, "branch/lock/held").exists()
+                    || new File(bzr, "repository/lock/held").exists()
+                    || new File(bzr, "checkout/lock/held").exists()) {
+                return false;
+            }
+            String parentLocation = null;
+            BufferedReader in = new BufferedReader(new FileReader(new File(bzr, "branch/branch.conf")));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int index = line.indexOf('=');
+                    if (index > 0 && line.substring(0, index).trim().equals("parent_location")) {
+                        parentLocation = line.substring(index + 1).trim();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return parentLocation != null && normalizeLocation(parentLocation).equals(normalizeLocation(source));
         }
 
-        return createEmptyChangeLog(changelogFile, listener, "changelog");
+        private static String normalizeLocation(String location) {
+            if (location.startsWith("file://")) {
+                location = location.substring("file://".length());
+            }
+            while (location.length() > 1 && location.endsWith("/")) {
+                location = location.substring(0, location.length() - 1);
+            }
+            return location;
+        }
     }
 
     /**
@@ -521,6 +1755,17 @@ public class BazaarSCM extends SCM implements Serializable {
           if (revisionState.getRevId() != null) {
             env.put("BZR_REVID", revisionState.getRevId());
           }
+          List<BazaarRevisionState> additionalStates = revisionState.getAdditionalStates();
+          for (int i = 0; i < additionalStates.size(); i++) {
+            // BZR_REVISION_1, BZR_REVID_1, ... for the additional locations, in order
+            BazaarRevisionState state = additionalStates.get(i);
+            if (state.getRevNo() != null) {
+              env.put("BZR_REVISION_" + (i + 1), state.getRevNo());
+            }
+            if (state.getRevId() != null) {
+              env.put("BZR_REVID_" + (i + 1), state.getRevId());
+            }
+          }
         }
     }
 
@@ -538,6 +1783,13 @@ public class BazaarSCM extends SCM implements Serializable {
         @Extension
         public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
         private String bzrExe;
+        private String cacheLabel;
+        private int cacheRefreshInterval = 60;
+        private boolean sharedChangelogs;
+        private boolean compressChangelogs;
+        private int maxConcurrentPolls;
+        private int startupPollWindow;
+        private int mergeDepth;
         private transient String version;
 
         private DescriptorImpl() {
@@ -557,6 +1809,67 @@ public class BazaarSCM extends SCM implements Serializable {
             return (bzrExe == null) ? "bzr" : bzrExe;
         }
 
+        /**
+         * Label expression of the nodes whose Bazaar cache is warmed up when
+         * they come online.
+         * @return
+         */
+        public String getCacheLabel() {
+            return Util.fixEmptyAndTrim(cacheLabel);
+        }
+
+        /**
+         * Minutes between refreshes of the caches of idle nodes.
+         * @return
+         */
+        public int getCacheRefreshInterval() {
+            return cacheRefreshInterval > 0 ? cacheRefreshInterval : 60;
+        }
+
+        /**
+         * True if change logs are kept once in a store shared by all jobs,
+         * builds only referencing them.
+         * @return
+         */
+        public boolean isSharedChangelogs() {
+            return sharedChangelogs;
+        }
+
+        /**
+         * True if the change logs of new builds are written gzipped.
+         * @return
+         */
+        public boolean isCompressChangelogs() {
+            return compressChangelogs;
+        }
+
+        /**
+         * Maximum number of sources whose remote revision is fetched at the
+         * same time in the background, or 0 to fetch it in the polling thread.
+         * @return
+         */
+        public int getMaxConcurrentPolls() {
+            return Math.max(0, maxConcurrentPolls);
+        }
+
+        /**
+         * Minutes after a restart over which the first polls of the sources are
+         * spread, or 0 to poll them right away.
+         * @return
+         */
+        public int getStartupPollWindow() {
+            return Math.max(0, startupPollWindow);
+        }
+
+        /**
+         * Levels of merged revisions written to change logs, or 0 for all of
+         * them. The revisions below are read from the branch when asked for.
+         * @return
+         */
+        public int getMergeDepth() {
+            return Math.max(0, mergeDepth);
+        }
+
         @Override
         public SCM newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             BazaarSCM scm = req.bindJSON(BazaarSCM.class, formData);
@@ -566,12 +1879,55 @@ public class BazaarSCM extends SCM implements Serializable {
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             bzrExe = req.getParameter("bazaar.bzrExe");
+            cacheLabel = Util.fixEmptyAndTrim(req.getParameter("bazaar.cacheLabel"));
+            try {
+                cacheRefreshInterval = Integer.parseInt(req.getParameter("bazaar.cacheRefreshInterval"));
+            } catch (NumberFormatException e) {
+                cacheRefreshInterval = 60;
+            }
+            try {
+                maxConcurrentPolls = Integer.parseInt(req.getParameter("bazaar.maxConcurrentPolls"));
+            } catch (NumberFormatException e) {
+                maxConcurrentPolls = 0;
+            }
+            try {
+                startupPollWindow = Integer.parseInt(req.getParameter("bazaar.startupPollWindow"));
+            } catch (NumberFormatException e) {
+                startupPollWindow = 0;
+            }
+            try {
+                mergeDepth = Integer.parseInt(req.getParameter("bazaar.mergeDepth"));
+            } catch (NumberFormatException e) {
+                mergeDepth = 0;
+            }
+            sharedChangelogs = req.getParameter("bazaar.sharedChangelogs") != null;
+            compressChangelogs = req.getParameter("bazaar.compressChangelogs") != null;
             version = null;
             save();
+            // the executable may have changed
+            BazaarCapabilities.invalidate();
             return true;
         }
 
+        /**
+         * Gets the version of bzr on the master, once probed.
+         * @return
+         */
+        public String getVersion() {
+            if (version == null) {
+                BazaarCapabilities capabilities = BazaarCapabilities.getProbed(Hudson.getInstance());
+                if (capabilities != null) {
+                    version = capabilities.getVersion();
+                }
+            }
+            return version;
+        }
+
         public FormValidation doBzrExeCheck(@QueryParameter final String value) throws IOException, ServletException {
+            if (value != null && value.trim().equals(getBzrExe()) && getVersion() != null) {
+                // already probed, no need to run it again
+                return FormValidation.ok("bzr " + getVersion());
+            }
             return FormValidation.validateExecutable(value, new FormValidation.FileValidator() {
                 @Override public FormValidation validate(File exe) {
                     try {
@@ -596,8 +1952,25 @@ public class BazaarSCM extends SCM implements Serializable {
          * UUID version string.
          * This appears to be used for snapshot builds. See issue #1683
          */
-        private static final Pattern UUID_VERSION_STRING = Pattern.compile("\\(version ([0-9a-f]+)");
+        static final Pattern UUID_VERSION_STRING = Pattern.compile("\\(version ([0-9a-f]+)");
     }
+    /**
+     * Milliseconds a checkout waits for the cache of its node before going
+     * without it.
+     */
+    private static final long CACHE_WAIT = 60000;
+
+    /**
+     * Bytes of log read at most for the change log of a new branch or checkout,
+     * as the previous build may be thousands of revisions behind.
+     */
+    private static final long CLONE_LOG_LIMIT = Long.getLong(BazaarSCM.class.getName() + ".cloneLogLimit", 16 * 1024 * 1024);
+
+    /**
+     * Most locations of a multi-location job polled or checked out at once.
+     */
+    private static final int MAX_PARALLEL_LOCATIONS = 4;
+
     private static final long serialVersionUID = 1L;
     private static final Logger logger = Logger.getLogger(BazaarSCM.class.getName());
 }
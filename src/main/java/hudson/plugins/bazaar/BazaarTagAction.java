@@ -26,15 +26,13 @@ package hudson.plugins.bazaar;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.Launcher.LocalLauncher;
-import hudson.model.BuildListener;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.model.TaskThread;
 import hudson.model.AbstractBuild;
-import hudson.model.listeners.SCMListener;
-import hudson.scm.ChangeLogSet;
 import hudson.scm.AbstractScmTagAction;
+import hudson.scm.SCM;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.MultipartFormDataParser;
 
@@ -42,23 +40,44 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+/**
+ * Tags the revisions of a build.
+ *
+ * <p>
+ * The revisions are read from the change log of the build when first needed,
+ * and their tags from the {@link BazaarTags} of the source, so nothing but the
+ * action itself is saved with the build. The form lists them {@link #PAGE_SIZE}
+ * at a time.
+ * </p>
+ */
 public class BazaarTagAction extends AbstractScmTagAction implements Describable<BazaarTagAction> {
 
-    private final List<BazaarRevision> revisions = new ArrayList<BazaarRevision>();
+    static final int PAGE_SIZE = 100;
+
+    /**
+     * Revisions saved by the builds of older versions, which kept a copy of
+     * their tags here. Only their ids and numbers are still used.
+     */
+    private List<BazaarRevision> revisions;
+
+    private transient volatile List<BazaarRevision> loaded;
 
     protected BazaarTagAction(AbstractBuild<?,?> build) {
         super(build);
-        new BazaarTagListener().register();
     }
 
     public String getIconFileName() {
@@ -71,25 +90,140 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
         return "Tags";
     }
 
+    /**
+     * Tells whether any revision of the build is tagged, as far as the tags
+     * last read tell: this is asked on every page of the build, which must not
+     * wait for bzr.
+     */
     @Override
     public boolean isTagged() {
-        if (! hasRevisions()) {
+        String source = getSource();
+        Map<String, List<String>> tags = source == null ? null : BazaarTags.getCached(source);
+        if (tags == null) {
             return false;
         }
-        for (BazaarRevision revision : this.revisions) {
-            if (revision.isTagged()) {
+        for (BazaarRevision revision : loadRevisions()) {
+            if (tags.containsKey(revision.getRevId())) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Gets all the revisions of the build, with their current tags.
+     */
     public List<BazaarRevision> getRevisions() {
-        return this.revisions;
+        return withTags(loadRevisions());
+    }
+
+    /**
+     * Gets the tagged revisions of the build.
+     */
+    public List<BazaarRevision> getTaggedRevisions() {
+        List<BazaarRevision> tagged = new ArrayList<BazaarRevision>();
+        for (BazaarRevision revision : getRevisions()) {
+            if (revision.isTagged()) {
+                tagged.add(revision);
+            }
+        }
+        return tagged;
+    }
+
+    /**
+     * Gets the revisions of the page starting at {@link #getOffset()}, with
+     * their current tags.
+     */
+    public List<BazaarRevision> getRevisionPage() {
+        return getRevisionPage(getOffset());
+    }
+
+    private List<BazaarRevision> getRevisionPage(int offset) {
+        List<BazaarRevision> all = loadRevisions();
+        if (offset >= all.size()) {
+            return Collections.emptyList();
+        }
+        return withTags(all.subList(offset, Math.min(all.size(), offset + PAGE_SIZE)));
+    }
+
+    /**
+     * Gets the index of the first revision of the requested page.
+     */
+    public int getOffset() {
+        StaplerRequest req = Stapler.getCurrentRequest();
+        return req == null ? 0 : parseOffset(req.getParameter("offset"));
+    }
+
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    public int getRevisionCount() {
+        return loadRevisions().size();
     }
 
     public boolean hasRevisions() {
-        return this.revisions != null && ! this.revisions.isEmpty();
+        return !loadRevisions().isEmpty();
+    }
+
+    private List<BazaarRevision> loadRevisions() {
+        List<BazaarRevision> result = loaded;
+        if (result != null) {
+            return result;
+        }
+        result = new ArrayList<BazaarRevision>();
+        if (revisions != null) {
+            for (BazaarRevision revision : revisions) {
+                result.add(new BazaarRevision(revision.getRevId(), revision.getRevNo(), null));
+            }
+        } else {
+            for (Object entry : getBuild().getChangeSet()) {
+                if (entry instanceof BazaarChangeSet && ((BazaarChangeSet) entry).getLocation() == null) {
+                    BazaarChangeSet changeSet = (BazaarChangeSet) entry;
+                    result.add(new BazaarRevision(changeSet.getRevid(), changeSet.getRevno(), null));
+                }
+            }
+        }
+        loaded = Collections.unmodifiableList(result);
+        return loaded;
+    }
+
+    /**
+     * Copies revisions with the tags the source has for them.
+     */
+    private List<BazaarRevision> withTags(List<BazaarRevision> page) {
+        Map<String, List<String>> tags = null;
+        String source = getSource();
+        if (source != null) {
+            try {
+                tags = BazaarTags.get(source);
+            } catch (InterruptedException e) {
+                logger.log(Level.FINE, "Interrupted while reading the tags of " + source, e);
+            }
+        }
+        List<BazaarRevision> result = new ArrayList<BazaarRevision>(page.size());
+        for (BazaarRevision revision : page) {
+            List<String> names = tags == null ? null : tags.get(revision.getRevId());
+            result.add(new BazaarRevision(revision.getRevId(), revision.getRevNo(),
+                    names == null ? new ArrayList<String>() : new ArrayList<String>(names)));
+        }
+        return result;
+    }
+
+    private String getSource() {
+        SCM scm = getBuild().getProject().getScm();
+        return scm instanceof BazaarSCM ? ((BazaarSCM) scm).getSource() : null;
+    }
+
+    private static int parseOffset(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public synchronized void doSubmit(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
@@ -100,7 +234,7 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
         Map<BazaarRevision, String> newTags = new HashMap<BazaarRevision, String>();
 
         int i=-1;
-        for (BazaarRevision e : this.revisions) {
+        for (BazaarRevision e : getRevisionPage(parseOffset(parser.get("offset")))) {
             ++i;
             if (parser.get("tag" + i) != null && ! parser.get("name" + i).isEmpty()) {
                 newTags.put(e, parser.get("name" + i));
@@ -119,14 +253,16 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
             BazaarRevision revision = null;
             String tag = null;
 
-            for (BazaarRevision e : this.revisions) {
+            for (BazaarRevision e : loadRevisions()) {
                 if (e.getRevId().equals(req.getParameter("revid"))) {
                     revision = e;
                     tag = req.getParameter("tag");
                 }
             }
 
-            new TagDeletionWorkerThread(revision, tag).start();
+            if (revision != null) {
+                new TagDeletionWorkerThread(revision, tag).start();
+            }
         }
 
         rsp.sendRedirect(".");
@@ -176,18 +312,6 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
         }
     }
 
-    private class BazaarTagListener extends SCMListener {
-        @Override
-        public void onChangeLogParsed(AbstractBuild<?,?> build, BuildListener listener, ChangeLogSet<?> changelog) throws Exception {
-            for (Object changelogEntry : changelog) {
-                if (changelogEntry instanceof BazaarChangeSet) {
-                    BazaarChangeSet changeset = (BazaarChangeSet) changelogEntry;
-                    revisions.add(new BazaarRevision(changeset.getRevid(), changeset.getRevno(), changeset.getTags()));
-                }
-            }
-        }
-    }
-
     /**
      * The thread that performs tagging operation asynchronously.
      */
@@ -208,25 +332,32 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
                 Launcher launcher = new LocalLauncher(listener);
                 BazaarSCM bazaarSCM = (BazaarSCM) getBuild().getProject().getScm();
 
-                for (Entry<BazaarRevision, String> e : tagSet.entrySet()) {
-                    logger.println("Tagging " + e.getKey() + " to " + e.getValue());
-
-                    ArgumentListBuilder args = new ArgumentListBuilder();
-                    args.add(bazaarSCM.getDescriptor().getBzrExe(), "tag");
-                    args.add("-r", e.getKey().getRevId());
-                    args.add("-d", bazaarSCM.getSource());
-                    if (this.force) {
-                        args.add("--force");
-                    }
-                    args.add(e.getValue());
-
-                    if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
-                        listener.error("Failed to tag");
-                    } else {
-                        e.getKey().addTag(e.getValue());
+                BazaarLocks.Lease lease = BazaarLocks.acquireSource(bazaarSCM.getSource(), listener);
+                if (lease == null) {
+                    listener.error("Gave up waiting for other operations on " + bazaarSCM.getSource());
+                    return;
+                }
+                try {
+                    for (Entry<BazaarRevision, String> e : tagSet.entrySet()) {
+                        logger.println("Tagging " + e.getKey() + " to " + e.getValue());
+
+                        ArgumentListBuilder args = new ArgumentListBuilder();
+                        args.add(bazaarSCM.getDescriptor().getBzrExe(), "tag");
+                        args.add("-r", e.getKey().getRevId());
+                        args.add("-d", bazaarSCM.getSource());
+                        if (this.force) {
+                            args.add("--force");
+                        }
+                        args.add(e.getValue());
+
+                        if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
+                            listener.error("Failed to tag");
+                        }
                     }
+                } finally {
+                    BazaarTags.invalidate(bazaarSCM.getSource());
+                    lease.release();
                 }
-                getBuild().save();
            } catch (Throwable e) {
                e.printStackTrace(listener.fatalError(e.getMessage()));
            }
@@ -253,21 +384,28 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
                 Launcher launcher = new LocalLauncher(listener);
                 BazaarSCM bazaarSCM = (BazaarSCM) getBuild().getProject().getScm();
 
-                logger.println("Removing tag " + tag);
+                BazaarLocks.Lease lease = BazaarLocks.acquireSource(bazaarSCM.getSource(), listener);
+                if (lease == null) {
+                    listener.error("Gave up waiting for other operations on " + bazaarSCM.getSource());
+                    return;
+                }
+                try {
+                    logger.println("Removing tag " + tag);
 
-                ArgumentListBuilder args = new ArgumentListBuilder();
-                args.add(bazaarSCM.getDescriptor().getBzrExe(), "tag");
-                args.add("-r", revision.getRevId());
-                args.add("-d", bazaarSCM.getSource());
-                args.add("--delete");
-                args.add(tag);
+                    ArgumentListBuilder args = new ArgumentListBuilder();
+                    args.add(bazaarSCM.getDescriptor().getBzrExe(), "tag");
+                    args.add("-r", revision.getRevId());
+                    args.add("-d", bazaarSCM.getSource());
+                    args.add("--delete");
+                    args.add(tag);
 
-                if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
-                    listener.error("Failed to delete tag");
-                } else {
-                    revision.removeTag(tag);
+                    if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).join() != 0) {
+                        listener.error("Failed to delete tag");
+                    }
+                } finally {
+                    BazaarTags.invalidate(bazaarSCM.getSource());
+                    lease.release();
                 }
-                getBuild().save();
            } catch (Throwable e) {
                e.printStackTrace(listener.fatalError(e.getMessage()));
            }
@@ -293,4 +431,5 @@ public class BazaarTagAction extends AbstractScmTagAction implements Describable
         }
     }
 
+    private static final Logger logger = Logger.getLogger(BazaarTagAction.class.getName());
 }
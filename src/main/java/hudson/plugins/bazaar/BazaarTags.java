@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Launcher.LocalLauncher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tags of the sources, as the branch itself has them, read with a single
+ * <tt>bzr tags --show-ids</tt> and kept for a few minutes.
+ *
+ * <p>
+ * Every build of a source shares the same map, and tagging through Jenkins
+ * drops it so that the change shows at once. Tags too old are still used
+ * while they are read again, and a source whose tags could not be read is
+ * only asked again after {@link #FAILURE_TTL}.
+ * </p>
+ */
+final class BazaarTags {
+
+    /**
+     * Milliseconds the tags of a source are kept.
+     */
+    private static final long TTL = Long.getLong(BazaarTags.class.getName() + ".ttl", 5 * 60 * 1000);
+
+    /**
+     * Milliseconds before reading the tags of a source is tried again after it failed.
+     */
+    private static final long FAILURE_TTL = 5 * 60 * 1000;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Reads the tags of sources in the background. Its queue is bounded: when
+     * too many sources are waiting, new ones are dropped until asked again.
+     */
+    private static final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(100), new DaemonThreadFactory());
+
+    private BazaarTags() {
+    }
+
+    /**
+     * Gets the tags of a source by revision id, reading them again if they
+     * are too old. Whoever finds them being read by someone else gets the old
+     * ones, if there are any, rather than waiting.
+     *
+     * @return
+     *      null if they could not be read.
+     */
+    static Map<String, List<String>> get(String source) throws InterruptedException {
+        Entry entry = getEntry(source);
+        synchronized (entry) {
+            while (true) {
+                if (!entry.isStale() || entry.isBackingOff()) {
+                    // better stale than nothing
+                    return entry.tags;
+                }
+                if (!entry.fetching) {
+                    break;
+                }
+                if (entry.tags != null) {
+                    return entry.tags;
+                }
+                entry.wait();
+            }
+            entry.fetching = true;
+        }
+        return refresh(source, entry);
+    }
+
+    /**
+     * Gets the tags of a source by revision id as they were last read, without
+     * waiting. If they are too old, or were never read, they are read in the
+     * background.
+     *
+     * @return
+     *      null if they were never read yet.
+     */
+    static Map<String, List<String>> getCached(final String source) {
+        final Entry entry = getEntry(source);
+        synchronized (entry) {
+            if (!entry.isStale() || entry.isBackingOff() || entry.fetching) {
+                return entry.tags;
+            }
+            entry.fetching = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        refresh(source, entry);
+                    } catch (InterruptedException e) {
+                        logger.log(Level.FINE, "Interrupted while reading the tags of " + source, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (entry) {
+                entry.fetching = false;
+                entry.notifyAll();
+            }
+            logger.log(Level.FINE, "Too many tag reads waiting, dropped " + source);
+        }
+        synchronized (entry) {
+            return entry.tags;
+        }
+    }
+
+    /**
+     * Reads the tags of a source into its entry, which the caller marked as
+     * being fetched.
+     */
+    private static Map<String, List<String>> refresh(String source, Entry entry) throws InterruptedException {
+        Map<String, List<String>> tags = null;
+        try {
+            tags = fetch(source);
+        } finally {
+            synchronized (entry) {
+                if (tags != null) {
+                    entry.tags = tags;
+                    entry.fetched = System.currentTimeMillis();
+                    entry.failed = 0;
+                } else {
+                    entry.failed = System.currentTimeMillis();
+                }
+                entry.fetching = false;
+                entry.notifyAll();
+            }
+        }
+        synchronized (entry) {
+            return entry.tags;
+        }
+    }
+
+    /**
+     * Forgets the tags of a source, after they were changed.
+     */
+    static void invalidate(String source) {
+        Entry entry = entries.get(source);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.fetched = 0;
+                entry.failed = 0;
+            }
+        }
+    }
+
+    private static Entry getEntry(String source) {
+        synchronized (entries) {
+            Entry entry = entries.get(source);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(source, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static Map<String, List<String>> fetch(String source) throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(BazaarSCM.DescriptorImpl.DESCRIPTOR.getBzrExe(), "tags", "-d", source, "--show-ids");
+        try {
+            int ret = new LocalLauncher(TaskListener.NULL).launch().cmds(args).stdout(out).join();
+            if (ret != 0) {
+                logger.log(Level.WARNING, "bzr tags returned {0}", ret);
+                return null;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the tags of " + source, e);
+            return null;
+        }
+
+        Map<String, List<String>> tags = new HashMap<String, List<String>>();
+        for (String line : out.toString().split("\n")) {
+            line = line.trim();
+            int index = line.lastIndexOf(' ');
+            if (index < 0) {
+                continue;
+            }
+            String name = line.substring(0, index).trim();
+            String revid = line.substring(index + 1);
+            if (revid.equals("?")) {
+                // tag of a revision missing from the branch
+                continue;
+            }
+            List<String> names = tags.get(revid);
+            if (names == null) {
+                names = new ArrayList<String>(1);
+                tags.put(revid, names);
+            }
+            names.add(name);
+        }
+        for (Map.Entry<String, List<String>> e : tags.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return Collections.unmodifiableMap(tags);
+    }
+
+    private static final class Entry {
+        Map<String, List<String>> tags;
+        long fetched;
+        /**
+         * When reading the tags last failed, 0 if it didn't.
+         */
+        long failed;
+        boolean fetching;
+
+        boolean isStale() {
+            return tags == null || System.currentTimeMillis() - fetched > TTL;
+        }
+
+        boolean isBackingOff() {
+            return System.currentTimeMillis() - failed <= FAILURE_TTL;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(BazaarTags.class.getName());
+}
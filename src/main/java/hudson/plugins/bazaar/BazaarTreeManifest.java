@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size and modification time of every file of a working tree, recorded
+ * right after a successful checkout.
+ *
+ * <p>
+ * Comparing the tree against it is a lot cheaper than having bzr scan it, and
+ * tells whether <tt>bzr revert</tt> and <tt>bzr clean-tree</tt> have anything
+ * to do at all.
+ * </p>
+ *
+ * <p>
+ * As in git and bzr, a file modified within {@link #RACY_WINDOW} of the
+ * manifest may have been rewritten since with the same size and, given the
+ * resolution of the file system, the same time: it is never considered
+ * unchanged. The manifest is written once that window has passed for the
+ * files it lists, so that a checkout that just wrote files doesn't make the
+ * next build dirty.
+ * </p>
+ *
+ * <p>
+ * Trees with more than {@link #MAX_ENTRIES} files and directories get no
+ * manifest, as walking them twice per build would cost more than what it
+ * saves.
+ * </p>
+ */
+final class BazaarTreeManifest {
+
+    private static final String MANIFEST = "jenkins-manifest";
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Milliseconds within which two writes of a file may leave it with the
+     * same modification time, on file systems with a coarse one like FAT or NFS.
+     */
+    static final long RACY_WINDOW = 2000;
+
+    /**
+     * Largest number of entries a manifest is recorded for.
+     */
+    static final int MAX_ENTRIES = Integer.getInteger(BazaarTreeManifest.class.getName() + ".maxEntries", 100000);
+
+    private BazaarTreeManifest() {
+    }
+
+    private static File manifestFile(File tree) {
+        return new File(new File(tree, ".bzr"), MANIFEST);
+    }
+
+    /**
+     * Records the manifest of a tree, or removes it if the tree is too large.
+     * Returns the number of entries recorded, or -1 if the tree is too large.
+     */
+    static final class Record implements FileCallable<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Record() {
+            this(MAX_ENTRIES);
+        }
+
+        Record(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public Integer invoke(File tree, VirtualChannel channel) throws IOException {
+            File manifest = manifestFile(tree);
+            if (!manifest.getParentFile().isDirectory()) {
+                return 0;
+            }
+            List<String> lines = new ArrayList<String>();
+            long[] newest = new long[1];
+            if (!list(lines, newest, tree, "")) {
+                manifest.delete();
+                return -1;
+            }
+
+            File tmp = new File(manifest.getPath() + ".tmp");
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+            try {
+                for (String line : lines) {
+                    w.write(line);
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+
+            // the time the file system gives the manifest, not the clock, is
+            // what the check compares against: it may lag or be truncated
+            long wait;
+            while ((wait = newest[0] + RACY_WINDOW - tmp.lastModified()) >= 0) {
+                try {
+                    Thread.sleep(Math.min(wait + 1, RACY_WINDOW));
+                } catch (InterruptedException e) {
+                    tmp.delete();
+                    throw (IOException) new IOException("Interrupted while recording the manifest").initCause(e);
+                }
+                if (!tmp.setLastModified(System.currentTimeMillis())) {
+                    break;
+                }
+            }
+
+            if (!tmp.renameTo(manifest)) {
+                manifest.delete();
+                if (!tmp.renameTo(manifest)) {
+                    throw new IOException("Failed to write " + manifest);
+                }
+            }
+            return lines.size();
+        }
+
+        /**
+         * @return
+         *      false if the tree has too many entries.
+         */
+        private boolean list(List<String> lines, long[] newest, File dir, String prefix) throws IOException {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return true;
+            }
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (path.equals(".bzr")) {
+                    continue;
+                }
+                if (lines.size() >= maxEntries) {
+                    return false;
+                }
+                boolean directory = child.isDirectory() && !Util.isSymlink(child);
+                long lastModified = directory ? 0 : child.lastModified();
+                newest[0] = Math.max(newest[0], lastModified);
+                lines.add((directory ? "d" : "f") + '\t' + (directory ? 0 : child.length()) + '\t' + lastModified + '\t' + path);
+                if (directory && !list(lines, newest, child, path + "/")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether a tree still matches its manifest.
+     * A tree without a manifest is never considered clean.
+     */
+    static final class Check implements FileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        public Boolean invoke(File tree, VirtualChannel channel) throws IOException {
+            File manifest = manifestFile(tree);
+            if (!manifest.isFile()) {
+                return false;
+            }
+            // files modified this late may have changed since without their time changing
+            long racy = manifest.lastModified() - RACY_WINDOW;
+
+            Map<String, String> entries = new HashMap<String, String>();
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ENCODING));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int index = line.lastIndexOf('\t');
+                    if (index < 0) {
+                        return false;
+                    }
+                    entries.put(line.substring(index + 1), line.substring(0, index));
+                }
+            } finally {
+                in.close();
+            }
+
+            int[] seen = new int[1];
+            return matches(entries, racy, tree, "", seen) && seen[0] == entries.size();
+        }
+
+        private static boolean matches(Map<String, String> entries, long racy, File dir, String prefix, int[] seen) {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return true;
+            }
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (path.equals(".bzr")) {
+                    continue;
+                }
+                String expected = entries.get(path);
+                if (expected == null) {
+                    return false;
+                }
+                seen[0]++;
+                try {
+                    boolean directory = child.isDirectory() && !Util.isSymlink(child);
+                    if (directory) {
+                        if (!expected.startsWith("d") || !matches(entries, racy, child, path + "/", seen)) {
+                            return false;
+                        }
+                    } else if (child.lastModified() >= racy
+                            || !expected.equals("f\t" + child.length() + "\t" + child.lastModified())) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -27,6 +27,10 @@ public class Loggerhead extends BazaarRepositoryBrowser {
      */
     public final URL url;
 
+    private static final LinkTemplate CHANGESET_LINK = LinkTemplate.compile("revision/{revno}");
+    private static final LinkTemplate DIFF_LINK = LinkTemplate.compile("revision/{revno}/{0}");
+    private static final LinkTemplate FILE_LINK = LinkTemplate.compile("{0}/{revno}/{1}?file_id={2}");
+
     @DataBoundConstructor
     public Loggerhead(URL url) {
         this.url = normalizeToEndWithSlash(url);
@@ -34,7 +38,7 @@ public class Loggerhead extends BazaarRepositoryBrowser {
 
     @Override
     public URL getChangeSetLink(BazaarChangeSet changeSet) throws IOException {
-        return new URL(this.url, "./revision/" + changeSet.getRevno());
+        return createLink(this.url, CHANGESET_LINK, changeSet);
     }
 
     @Override
@@ -42,8 +46,7 @@ public class Loggerhead extends BazaarRepositoryBrowser {
         URL url = null;
         String path = affectedFile.getPath().trim();
         if (! isFolderPath(path) && ! isRenaming(affectedFile)) {
-            return new URL(this.url, String.format("./revision/%s/%s", affectedFile.getChangeSet().getRevno(),
-                                                                       trimHeadSlash(path)));
+            return createLink(this.url, DIFF_LINK, affectedFile.getChangeSet(), trimHeadSlash(path));
         }
         return url;
     }
@@ -51,10 +54,9 @@ public class Loggerhead extends BazaarRepositoryBrowser {
     @Override
     public URL getFileLink(BazaarAffectedFile affectedFile) throws IOException {
         String path = affectedFile.getPath().trim();
-        return new URL(this.url, String.format("./%s/%s/%s?file_id=%s", getBrowsingType(path),
-                                                                        affectedFile.getChangeSet().getRevno(),
-                                                                        trimHeadSlash(path),
-                                                                        affectedFile.getFileId()));
+        return createLink(this.url, FILE_LINK, affectedFile.getChangeSet(), getBrowsingType(path),
+                                                                            trimHeadSlash(path),
+                                                                            affectedFile.getFileId());
     }
 
     private static String getBrowsingType(String path) {
@@ -58,6 +58,9 @@ public class OpenGrok extends BazaarRepositoryBrowser {
      */
     private final String rootModule;
 
+    private static final LinkTemplate DIFF_LINK = LinkTemplate.compile("diff/{0}?r1=/{0}@{previousRevision}&r2=/{0}@{revision}");
+    private static final LinkTemplate FILE_LINK = LinkTemplate.compile("xref/{0}?r={revision}");
+
     @DataBoundConstructor
     public OpenGrok(URL url, String rootModule) {
         this.url = normalizeToEndWithSlash(url);
@@ -82,13 +85,7 @@ public class OpenGrok extends BazaarRepositoryBrowser {
         URL url = null;
         String path = affectedFile.getPath().trim();
         if (affectedFile.getEditType() == EditType.EDIT && ! isFolderPath(path) && ! isRenaming(affectedFile)) {
-            int revision = extractRevision(affectedFile);
-            path = getFullPath(path);
-            url = new URL(this.url, String.format("./diff/%s?r1=/%s@%s&r2=/%s@%s",path,
-                                                                                  path,
-                                                                                  revision-1,
-                                                                                  path,
-                                                                                  revision));
+            url = createLink(this.url, DIFF_LINK, affectedFile.getChangeSet(), getFullPath(path));
         }
         return url;
     }
@@ -98,15 +95,23 @@ public class OpenGrok extends BazaarRepositoryBrowser {
         URL url = null;
         String path = affectedFile.getPath().trim();
         if (affectedFile.getEditType() == EditType.EDIT && ! isFolderPath(path) && ! isRenaming(affectedFile)) {
-            int revision = extractRevision(affectedFile);
-            path = getFullPath(path);
-            url = new URL(this.url, String.format("./xref/%s?r=%s", path, revision));
+            url = createLink(this.url, FILE_LINK, affectedFile.getChangeSet(), getFullPath(path));
         }
         return url;
     }
 
-    private static int extractRevision(BazaarAffectedFile affectedFile) {
-        return Integer.valueOf(affectedFile.getChangeSet().getRevision());
+    @Override
+    protected String getChangeSetValue(BazaarChangeSet changeSet, String name) {
+        if ("revision".equals(name)) {
+            return String.valueOf(extractRevision(changeSet));
+        } else if ("previousRevision".equals(name)) {
+            return String.valueOf(extractRevision(changeSet) - 1);
+        }
+        return super.getChangeSetValue(changeSet, name);
+    }
+
+    private static int extractRevision(BazaarChangeSet changeSet) {
+        return Integer.valueOf(changeSet.getRevision());
     }
 
     private String getFullPath(String path) {
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.scm.EditType;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads <tt>changelog-merges.txt</tt>, the output of
+ * <tt>bzr log -v --long --show-ids -n0</tt> over a merge with two levels of
+ * merged revisions, followed by the section of an additional location.
+ */
+public class BazaarChangeLogReaderTest extends TestCase {
+
+    public void testTopLevelRevisionsOnly() throws IOException {
+        List<BazaarChangeSet> entries = read(false);
+
+        assertEquals(3, entries.size());
+
+        BazaarChangeSet merge = entries.get(0);
+        assertEquals("12", merge.getRevno());
+        assertEquals("jdoe@example.com-20110317143233-a1b2c3d4e5f6g7h8", merge.getRevid());
+        assertTrue(merge.isMerge());
+        assertEquals(3, merge.getMergedCount());
+        assertEquals(0, merge.getDepth());
+        assertNull(merge.getLocation());
+        assertEquals("John Doe", merge.getAuthorName());
+        assertEquals("jdoe@example.com", merge.getAuthorEmail());
+        assertEquals("+0100", merge.getTimezone());
+        // a merge without files of its own: its message ends at the merged revisions
+        assertEquals("Merge the feature branch", merge.getMsg());
+        assertTrue(merge.getAffectedFiles().isEmpty());
+
+        BazaarChangeSet plain = entries.get(1);
+        assertEquals("11", plain.getRevno());
+        assertFalse(plain.isMerge());
+        assertEquals(0, plain.getMergedCount());
+        assertEquals("Tidy up a\nand its comments", plain.getMsg());
+        assertEquals(1, plain.getAffectedFiles().size());
+        BazaarAffectedFile file = plain.getAffectedFiles().iterator().next();
+        assertEquals("src/a.c", file.getPath());
+        assertEquals("a.c-20110101000000-aaaaaaaaaaaaaaaa-1", file.getFileId());
+        assertEquals(EditType.EDIT, file.getEditType());
+    }
+
+    public void testLastEntryOfEachSectionIsDropped() throws IOException {
+        List<BazaarChangeSet> entries = read(false);
+
+        // revision 10 ends the main section, 19 the one of lp:other
+        for (BazaarChangeSet entry : entries) {
+            assertFalse("10".equals(entry.getRevno()));
+            assertFalse("19".equals(entry.getRevno()));
+        }
+
+        BazaarChangeSet other = entries.get(2);
+        assertEquals("20", other.getRevno());
+        assertEquals("lp:other", other.getLocation());
+        assertEquals("Change other", other.getMsg());
+        assertEquals(1, other.getAffectedFiles().size());
+        assertEquals(EditType.DELETE, other.getAffectedFiles().iterator().next().getEditType());
+    }
+
+    public void testMergedRevisions() throws IOException {
+        List<BazaarChangeSet> entries = read(true);
+
+        String[] revnos = {"12", "10.1.2", "10.2.1", "10.1.1", "11", "10", "20", "19"};
+        int[] depths = {0, 1, 2, 1, 0, 0, 0, 0};
+        assertEquals(revnos.length, entries.size());
+        for (int i = 0; i < revnos.length; i++) {
+            assertEquals(revnos[i], entries.get(i).getRevno());
+            assertEquals(revnos[i], depths[i], entries.get(i).getDepth());
+        }
+
+        assertEquals("Merge the feature branch", entries.get(0).getMsg());
+
+        BazaarChangeSet nested = entries.get(1);
+        assertTrue(nested.isMerge());
+        assertEquals("Alice Smith", nested.getAuthorName());
+        assertEquals("Merge the fix of Bob", nested.getMsg());
+        assertEquals(1, nested.getAffectedFiles().size());
+        assertEquals("src/b.c", nested.getAffectedFiles().iterator().next().getPath());
+
+        BazaarChangeSet deepest = entries.get(2);
+        assertEquals("Fix the crash in b", deepest.getMsg());
+        assertEquals(1, deepest.getAffectedFiles().size());
+
+        BazaarChangeSet added = entries.get(3);
+        assertEquals(EditType.ADD, added.getAffectedFiles().iterator().next().getEditType());
+
+        assertEquals("lp:other", entries.get(7).getLocation());
+    }
+
+    private List<BazaarChangeSet> read(boolean merged) throws IOException {
+        List<BazaarChangeSet> entries = new ArrayList<BazaarChangeSet>();
+        BazaarChangeLogReader in = new BazaarChangeLogReader(
+                new InputStreamReader(getClass().getResourceAsStream("changelog-merges.txt"), "UTF-8"), merged);
+        try {
+            BazaarChangeSet entry;
+            while ((entry = in.next()) != null) {
+                entries.add(entry);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
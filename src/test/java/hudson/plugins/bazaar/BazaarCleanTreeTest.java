@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class BazaarCleanTreeTest extends TestCase {
+
+    private File tree;
+
+    @Override
+    protected void setUp() throws Exception {
+        tree = File.createTempFile("tree", "");
+        tree.delete();
+        tree.mkdirs();
+        touch(".bzr/branch/format");
+        touch("src/a.c");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(tree);
+    }
+
+    public void testUnversionedPathsAreRemoved() throws IOException {
+        touch("a.o");
+        touch("out/lib/b.o");
+        touch("out/c.o");
+
+        BazaarCleanTree.Stats stats = new BazaarCleanTree(Arrays.asList("a.o", "out")).invoke(tree, null);
+
+        assertFalse(new File(tree, "a.o").exists());
+        assertFalse(new File(tree, "out").exists());
+        assertTrue(new File(tree, "src/a.c").exists());
+        assertEquals(3, stats.files);
+        assertEquals(2, stats.directories);
+        assertEquals(0, stats.failures);
+    }
+
+    public void testControlDirectoryAndOutsidePathsAreSkipped() throws IOException {
+        BazaarCleanTree.Stats stats = new BazaarCleanTree(
+                Arrays.asList(".bzr", ".bzr/branch", "../" + tree.getName(), "src/../..", "")).invoke(tree, null);
+
+        assertTrue(new File(tree, ".bzr/branch/format").exists());
+        assertTrue(new File(tree, "src/a.c").exists());
+        assertEquals(0, stats.files);
+        assertEquals(0, stats.directories);
+    }
+
+    public void testNestedBranchIsKept() throws IOException {
+        touch("lib/.bzr/branch/format");
+        touch("lib/lib.c");
+
+        BazaarCleanTree.Stats stats = new BazaarCleanTree(Arrays.asList("lib")).invoke(tree, null);
+
+        assertTrue(new File(tree, "lib/.bzr/branch/format").exists());
+        assertTrue(new File(tree, "lib/lib.c").exists());
+        assertEquals(1, stats.nested);
+        assertEquals(0, stats.files);
+    }
+
+    public void testBranchNestedInUnversionedDirectoryIsKept() throws IOException {
+        touch("out/a.o");
+        touch("out/deps/other/.bzr/branch/format");
+        touch("out/deps/other/other.c");
+        touch("out/deps/b.o");
+        touch("out/tmp/c.o");
+
+        BazaarCleanTree.Stats stats = new BazaarCleanTree(Arrays.asList("out")).invoke(tree, null);
+
+        assertTrue(new File(tree, "out/deps/other/.bzr/branch/format").exists());
+        assertTrue(new File(tree, "out/deps/other/other.c").exists());
+        assertFalse(new File(tree, "out/a.o").exists());
+        assertFalse(new File(tree, "out/deps/b.o").exists());
+        assertFalse(new File(tree, "out/tmp").exists());
+        assertEquals(1, stats.nested);
+        assertEquals(3, stats.files);
+        assertEquals(1, stats.directories);
+        assertEquals(0, stats.failures);
+    }
+
+    private void touch(String path) throws IOException {
+        File file = new File(tree, path);
+        file.getParentFile().mkdirs();
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(path);
+        } finally {
+            out.close();
+        }
+    }
+}
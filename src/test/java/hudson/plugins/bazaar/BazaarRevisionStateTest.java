@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class BazaarRevisionStateTest extends TestCase {
+
+    public void testSameMainRevision() {
+        assertEquals(new BazaarRevisionState("10", "a"), new BazaarRevisionState("10", "a"));
+        // the revno is local to a branch, only the id tells the revision
+        assertEquals(new BazaarRevisionState("10", "a"), new BazaarRevisionState("11", "a"));
+        assertFalse(new BazaarRevisionState("10", "a").equals(new BazaarRevisionState("10", "b")));
+    }
+
+    public void testSameAdditionalRevisions() {
+        BazaarRevisionState state = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x"), new BazaarRevisionState("4", "y")));
+        BazaarRevisionState same = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x"), new BazaarRevisionState("4", "y")));
+        assertEquals(state, same);
+        assertEquals(state.hashCode(), same.hashCode());
+    }
+
+    public void testChangedAdditionalRevision() {
+        BazaarRevisionState state = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x"), new BazaarRevisionState("4", "y")));
+        BazaarRevisionState changed = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x"), new BazaarRevisionState("5", "z")));
+        assertFalse(state.equals(changed));
+        assertFalse(changed.equals(state));
+        assertTrue(state.sameAdditionalStates(state));
+        assertFalse(state.sameAdditionalStates(changed));
+    }
+
+    public void testAdditionalRevisionsInOrder() {
+        BazaarRevisionState state = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x"), new BazaarRevisionState("4", "y")));
+        BazaarRevisionState swapped = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("4", "y"), new BazaarRevisionState("3", "x")));
+        assertFalse(state.equals(swapped));
+    }
+
+    public void testAddedLocation() {
+        BazaarRevisionState single = new BazaarRevisionState("10", "a");
+        BazaarRevisionState multiple = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x")));
+        assertFalse(single.equals(multiple));
+        assertFalse(multiple.equals(single));
+        // no additional location is the same as an empty list of them
+        assertEquals(single, new BazaarRevisionState("10", "a", Collections.<BazaarRevisionState>emptyList()));
+    }
+
+    public void testLocationStates() {
+        BazaarRevisionState state = new BazaarRevisionState("10", "a",
+                Arrays.asList(new BazaarRevisionState("3", "x")));
+        assertSame(state, state.getLocationState(0));
+        assertEquals("x", state.getLocationState(1).getRevId());
+        assertNull(state.getLocationState(2));
+    }
+}
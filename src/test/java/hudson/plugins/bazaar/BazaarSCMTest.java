@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BazaarSCMTest extends TestCase {
+
+    private static final String SEPARATOR = "------------------------------------------------------------\n";
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("logs", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testLogWithinLimit() throws IOException {
+        String log = entry("12", "Fix the bézier curves") + entry("11", "Tidy up");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BazaarSCM.LimitedOutputStream limited = new BazaarSCM.LimitedOutputStream(out, 10000);
+        write(limited, log.getBytes("UTF-8"), 7);
+        limited.close();
+
+        assertFalse(limited.isTruncated());
+        assertEquals(log, out.toString("UTF-8"));
+    }
+
+    public void testLogCutBetweenEntries() throws IOException {
+        String first = entry("12", "Fix the bézier curves");
+        String log = first + entry("11", "Tidy up") + entry("10", "Start");
+        byte[] bytes = log.getBytes("UTF-8");
+        // the limit falls in the middle of the second entry, and of no character
+        int limit = first.getBytes("UTF-8").length + 40;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BazaarSCM.LimitedOutputStream limited = new BazaarSCM.LimitedOutputStream(out, limit);
+        write(limited, bytes, 13);
+        limited.close();
+
+        assertTrue(limited.isTruncated());
+        assertEquals(first, out.toString("UTF-8"));
+    }
+
+    public void testLogCutInMultibyteCharacter() throws IOException {
+        String first = entry("12", "Start");
+        String second = entry("11", "éééé");
+        byte[] bytes = (first + second).getBytes("UTF-8");
+        // four bytes short of the whole log, in the middle of an é
+        int limit = bytes.length - 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BazaarSCM.LimitedOutputStream limited = new BazaarSCM.LimitedOutputStream(out, limit);
+        limited.write(bytes);
+        limited.close();
+
+        assertTrue(limited.isTruncated());
+        assertEquals(first, out.toString("UTF-8"));
+    }
+
+    public void testFirstEntryTooLong() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BazaarSCM.LimitedOutputStream limited = new BazaarSCM.LimitedOutputStream(out, 20);
+        write(limited, (entry("12", "Start") + entry("11", "Tidy up")).getBytes("UTF-8"), 5);
+        limited.close();
+
+        assertTrue(limited.isTruncated());
+        assertEquals(0, out.size());
+    }
+
+    public void testNestedSeparatorsAreEntryBoundaries() throws IOException {
+        String merge = entry("12", "Merge");
+        String nested = "    " + SEPARATOR + "    revno: 10.1.1\n    message:\n      Feature\n";
+        String log = merge + nested + entry("11", "Tidy up");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BazaarSCM.LimitedOutputStream limited = new BazaarSCM.LimitedOutputStream(out,
+                (merge + nested).length() + 10);
+        write(limited, log.getBytes("UTF-8"), 11);
+        limited.close();
+
+        assertTrue(limited.isTruncated());
+        assertEquals(merge + nested, out.toString("UTF-8"));
+    }
+
+    /**
+     * A log cut by the limit may end in the middle of a line: the marker of
+     * the next location must still be on a line of its own.
+     */
+    public void testMergeTruncatedSection() throws IOException {
+        File main = file("main", entry("12", "Fix the bézier curves") + entry("11", "Tidy up")
+                + SEPARATOR + "revno: 10\nrevision-id: r10\nmessage:\n  Start of the trunc");
+        File other = file("other", entry("20", "Change other") + entry("19", "Previous build"));
+
+        StringWriter w = new StringWriter();
+        BazaarSCM.mergeChangeLogs(Arrays.asList("lp:main", "lp:other"), new File[] {main, other}, w);
+        assertTrue(w.toString().contains("Start of the trunc\n" + BazaarChangeLogReader.LOCATION + "lp:other\n"));
+
+        List<BazaarChangeSet> entries = read(w.toString());
+        assertEquals(3, entries.size());
+        assertEquals("12", entries.get(0).getRevno());
+        assertEquals("Fix the bézier curves", entries.get(0).getMsg());
+        assertNull(entries.get(0).getLocation());
+        assertEquals("11", entries.get(1).getRevno());
+        assertNull(entries.get(1).getLocation());
+        assertEquals("20", entries.get(2).getRevno());
+        assertEquals("lp:other", entries.get(2).getLocation());
+    }
+
+    public void testMergeEmptySections() throws IOException {
+        File main = file("main", entry("12", "Change") + entry("11", "Previous build"));
+        File empty = file("empty", "");
+        File other = file("other", entry("20", "Change other") + entry("19", "Previous build"));
+
+        StringWriter w = new StringWriter();
+        BazaarSCM.mergeChangeLogs(Arrays.asList("lp:main", "lp:empty", "lp:other"),
+                new File[] {main, empty, other}, w);
+
+        List<BazaarChangeSet> entries = read(w.toString());
+        assertEquals(2, entries.size());
+        assertEquals("12", entries.get(0).getRevno());
+        assertEquals("20", entries.get(1).getRevno());
+        assertEquals("lp:other", entries.get(1).getLocation());
+    }
+
+    private static String entry(String revno, String message) {
+        return SEPARATOR
+                + "revno: " + revno + "\n"
+                + "revision-id: r" + revno + "\n"
+                + "committer: John Doe <jdoe@example.com>\n"
+                + "branch nick: trunk\n"
+                + "timestamp: Thu 2011-03-17 15:32:33 +0100\n"
+                + "message:\n"
+                + "  " + message + "\n";
+    }
+
+    private static void write(OutputStream out, byte[] bytes, int chunk) throws IOException {
+        for (int off = 0; off < bytes.length; off += chunk) {
+            out.write(bytes, off, Math.min(chunk, bytes.length - off));
+        }
+    }
+
+    private File file(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<BazaarChangeSet> read(String log) throws IOException {
+        List<BazaarChangeSet> entries = new ArrayList<BazaarChangeSet>();
+        BazaarChangeLogReader in = new BazaarChangeLogReader(new StringReader(log));
+        try {
+            BazaarChangeSet entry;
+            while ((entry = in.next()) != null) {
+                entries.add(entry);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
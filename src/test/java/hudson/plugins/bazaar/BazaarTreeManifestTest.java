@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.bazaar;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BazaarTreeManifestTest extends TestCase {
+
+    private File tree;
+    private long old;
+
+    @Override
+    protected void setUp() throws Exception {
+        tree = File.createTempFile("tree", "");
+        tree.delete();
+        new File(tree, ".bzr").mkdirs();
+        old = System.currentTimeMillis() - 3600 * 1000;
+        write("src/a.c", "int a;");
+        write("src/b.c", "int b;");
+        write("README", "read me");
+        new File(tree, "src").setLastModified(old);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(tree);
+    }
+
+    public void testUnchangedTree() throws IOException {
+        assertEquals(4, record());
+        assertTrue(check());
+    }
+
+    public void testNoManifest() throws IOException {
+        assertFalse(check());
+    }
+
+    public void testChangedSize() throws IOException {
+        record();
+        write("src/a.c", "int a = 1;");
+        assertFalse(check());
+    }
+
+    public void testChangedTime() throws IOException {
+        record();
+        new File(tree, "src/a.c").setLastModified(old + 1000);
+        assertFalse(check());
+    }
+
+    public void testAddedFile() throws IOException {
+        record();
+        write("src/a.o", "");
+        assertFalse(check());
+    }
+
+    public void testRemovedFile() throws IOException {
+        record();
+        new File(tree, "src/b.c").delete();
+        assertFalse(check());
+    }
+
+    public void testControlDirectoryIgnored() throws IOException {
+        record();
+        write(".bzr/checkout/dirstate", "changed");
+        assertTrue(check());
+    }
+
+    /**
+     * A file modified just before the manifest was written may have been
+     * rewritten since with the same size and time.
+     */
+    public void testRacilyCleanFile() throws IOException {
+        record();
+        File manifest = new File(tree, ".bzr/jenkins-manifest");
+        manifest.setLastModified(old + BazaarTreeManifest.RACY_WINDOW / 2);
+        assertFalse(check());
+    }
+
+    /**
+     * A file written by the checkout right before the manifest is recorded
+     * doesn't make the tree dirty: recording waits for the window to pass.
+     */
+    public void testFreshFile() throws IOException {
+        write("src/c.c", "int c;");
+        new File(tree, "src/c.c").setLastModified(System.currentTimeMillis());
+        record();
+        assertTrue(check());
+    }
+
+    public void testTooManyEntries() throws IOException {
+        record();
+        assertEquals(-1, new BazaarTreeManifest.Record(3).invoke(tree, null).intValue());
+        assertFalse(new File(tree, ".bzr/jenkins-manifest").exists());
+        assertFalse(check());
+    }
+
+    private int record() throws IOException {
+        return new BazaarTreeManifest.Record().invoke(tree, null);
+    }
+
+    private boolean check() throws IOException {
+        return new BazaarTreeManifest.Check().invoke(tree, null);
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(tree, path);
+        file.getParentFile().mkdirs();
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(old);
+    }
+}